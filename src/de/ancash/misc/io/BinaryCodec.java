@@ -0,0 +1,840 @@
+package de.ancash.misc.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary {@link Codec}. Every value starts with a one byte tag.
+ * {@code null}, primitives and their boxes, {@link String}, primitive arrays,
+ * {@code String[]}, {@code Object[]}, {@link ArrayList}, {@link LinkedList},
+ * {@link HashSet}, {@link LinkedHashSet}, {@link HashMap},
+ * {@link LinkedHashMap} and {@link TreeSet}/{@link TreeMap} without comparator
+ * are written directly, integers as variable-length numbers. Other lists, sets
+ * and maps of {@code java.util} that cannot be named (e.g. {@link List#of()},
+ * {@link java.util.Collections#unmodifiableMap(Map)} or
+ * {@link Arrays#asList(Object...)}) are read back as {@link ArrayList},
+ * {@link LinkedHashSet} and {@link LinkedHashMap}, except enum sets and sorted
+ * ones.
+ * <p>
+ * Further types get a compact id and a {@link Serializer} with
+ * {@link #register(int, Class, Serializer)}; both sides must register the same
+ * ids. Everything else is written with the fallback codec, Java serialization
+ * by default.
+ * <p>
+ * Unlike Java serialization, objects are written as a tree: an object
+ * referenced twice is written twice and cycles are not supported.
+ */
+public class BinaryCodec implements Codec {
+
+	public static final byte[] MAGIC = { (byte) 0xB1, 'C' };
+	public static final byte VERSION = 1;
+	public static final int MAX_ID = 0xFFFF;
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte CHAR = 5;
+	private static final byte INT = 6;
+	private static final byte LONG = 7;
+	private static final byte FLOAT = 8;
+	private static final byte DOUBLE = 9;
+	private static final byte STRING = 10;
+	private static final byte BYTE_ARRAY = 11;
+	private static final byte SHORT_ARRAY = 12;
+	private static final byte CHAR_ARRAY = 13;
+	private static final byte INT_ARRAY = 14;
+	private static final byte LONG_ARRAY = 15;
+	private static final byte FLOAT_ARRAY = 16;
+	private static final byte DOUBLE_ARRAY = 17;
+	private static final byte BOOLEAN_ARRAY = 18;
+	private static final byte STRING_ARRAY = 19;
+	private static final byte OBJECT_ARRAY = 20;
+	private static final byte ARRAY_LIST = 21;
+	private static final byte LINKED_LIST = 22;
+	private static final byte HASH_SET = 23;
+	private static final byte LINKED_HASH_SET = 24;
+	private static final byte TREE_SET = 25;
+	private static final byte HASH_MAP = 26;
+	private static final byte LINKED_HASH_MAP = 27;
+	private static final byte TREE_MAP = 28;
+	private static final byte REGISTERED = 29;
+	private static final byte SERIALIZED = 30;
+
+	private static final Map<Class<?>, Byte> BUILT_IN = new HashMap<>();
+
+	static {
+		BUILT_IN.put(Boolean.class, TRUE);
+		BUILT_IN.put(Byte.class, BYTE);
+		BUILT_IN.put(Short.class, SHORT);
+		BUILT_IN.put(Character.class, CHAR);
+		BUILT_IN.put(Integer.class, INT);
+		BUILT_IN.put(Long.class, LONG);
+		BUILT_IN.put(Float.class, FLOAT);
+		BUILT_IN.put(Double.class, DOUBLE);
+		BUILT_IN.put(String.class, STRING);
+		BUILT_IN.put(byte[].class, BYTE_ARRAY);
+		BUILT_IN.put(short[].class, SHORT_ARRAY);
+		BUILT_IN.put(char[].class, CHAR_ARRAY);
+		BUILT_IN.put(int[].class, INT_ARRAY);
+		BUILT_IN.put(long[].class, LONG_ARRAY);
+		BUILT_IN.put(float[].class, FLOAT_ARRAY);
+		BUILT_IN.put(double[].class, DOUBLE_ARRAY);
+		BUILT_IN.put(boolean[].class, BOOLEAN_ARRAY);
+		BUILT_IN.put(String[].class, STRING_ARRAY);
+		BUILT_IN.put(Object[].class, OBJECT_ARRAY);
+		BUILT_IN.put(ArrayList.class, ARRAY_LIST);
+		BUILT_IN.put(LinkedList.class, LINKED_LIST);
+		BUILT_IN.put(HashSet.class, HASH_SET);
+		BUILT_IN.put(LinkedHashSet.class, LINKED_HASH_SET);
+		BUILT_IN.put(TreeSet.class, TREE_SET);
+		BUILT_IN.put(HashMap.class, HASH_MAP);
+		BUILT_IN.put(LinkedHashMap.class, LINKED_HASH_MAP);
+		BUILT_IN.put(TreeMap.class, TREE_MAP);
+	}
+
+	/**
+	 * Tag of the values of a class, {@link #SERIALIZED} for registered ones.
+	 */
+	private static final ClassValue<Byte> TAGS = new ClassValue<Byte>() {
+
+		@Override
+		protected Byte computeValue(Class<?> type) {
+			Byte tag = BUILT_IN.get(type);
+			if (tag != null)
+				return tag;
+			// only plain wrappers and views, enum sets and sorted views would lose
+			// their type or comparator
+			if (!Modifier.isPublic(type.getModifiers()) && type.getPackageName().equals("java.util")
+					&& !EnumSet.class.isAssignableFrom(type) && !SortedSet.class.isAssignableFrom(type)
+					&& !SortedMap.class.isAssignableFrom(type)) {
+				if (List.class.isAssignableFrom(type))
+					return ARRAY_LIST;
+				if (Set.class.isAssignableFrom(type))
+					return LINKED_HASH_SET;
+				if (Map.class.isAssignableFrom(type))
+					return LINKED_HASH_MAP;
+			}
+			return SERIALIZED;
+		}
+	};
+
+	private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+	private final Codec fallback;
+	private final Map<Class<?>, Registration> byType = new ConcurrentHashMap<>();
+	private volatile Registration[] byId = new Registration[0];
+
+	public BinaryCodec() {
+		this(JavaCodec.INSTANCE);
+	}
+
+	/**
+	 * @param fallback codec for types that are neither built in nor registered
+	 */
+	public BinaryCodec(Codec fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Writes and reads values of exactly {@code type} (not subclasses) with
+	 * {@code serializer}, identified by {@code id}.
+	 *
+	 * @param id 0 to {@link #MAX_ID}
+	 */
+	public synchronized <T> BinaryCodec register(int id, Class<T> type, Serializer<T> serializer) {
+		if (id < 0 || id > MAX_ID)
+			throw new IllegalArgumentException("id out of range: " + id);
+		if (TAGS.get(type) != SERIALIZED)
+			throw new IllegalArgumentException(type.getName() + " is built in");
+		if (byType.containsKey(type))
+			throw new IllegalArgumentException(type.getName() + " is already registered");
+		Registration[] ids = byId;
+		if (id < ids.length && ids[id] != null)
+			throw new IllegalArgumentException("id " + id + " is already used by " + ids[id].type.getName());
+		Registration registration = new Registration(id, type, serializer);
+		ids = Arrays.copyOf(ids, Math.max(ids.length, id + 1));
+		ids[id] = registration;
+		byId = ids;
+		byType.put(type, registration);
+		return this;
+	}
+
+	@Override
+	public byte[] encode(Object obj) throws IOException {
+		Output out = OUTPUT.get();
+		if (out.inUse)
+			// called from a serializer, the thread's buffer is taken
+			out = new Output();
+		out.start(this);
+		try {
+			out.writeObject(obj);
+			return Arrays.copyOf(out.buf, out.pos);
+		} finally {
+			out.end();
+		}
+	}
+
+	@Override
+	public Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+		if (!canDecode(bytes))
+			throw new StreamCorruptedException("Not encoded by " + BinaryCodec.class.getSimpleName());
+		Input in = new Input(this, bytes, MAGIC.length + 1);
+		Object obj = in.readObject();
+		if (in.pos != bytes.length)
+			throw new StreamCorruptedException((bytes.length - in.pos) + " trailing bytes");
+		return obj;
+	}
+
+	@Override
+	public boolean canDecode(byte[] bytes) {
+		return bytes.length > MAGIC.length && bytes[0] == MAGIC[0] && bytes[1] == MAGIC[1]
+				&& bytes[2] == VERSION;
+	}
+
+	/**
+	 * Writes and reads the values of a registered type.
+	 */
+	public interface Serializer<T> {
+
+		void write(Output out, T value) throws IOException;
+
+		T read(Input in) throws IOException, ClassNotFoundException;
+	}
+
+	private static final class Registration {
+
+		private final int id;
+		private final Class<?> type;
+		private final Serializer<Object> serializer;
+
+		@SuppressWarnings("unchecked")
+		private Registration(int id, Class<?> type, Serializer<?> serializer) {
+			this.id = id;
+			this.type = type;
+			this.serializer = (Serializer<Object>) serializer;
+		}
+	}
+
+	/**
+	 * Growing byte array the values are written to. Every calling thread reuses
+	 * its own.
+	 */
+	public static final class Output {
+
+		private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+		private byte[] buf = new byte[256];
+		private int pos;
+		private BinaryCodec codec;
+		private boolean inUse;
+
+		private Output() {
+		}
+
+		private void start(BinaryCodec codec) {
+			this.codec = codec;
+			this.inUse = true;
+			pos = 0;
+			write(MAGIC, 0, MAGIC.length);
+			writeByte(VERSION);
+		}
+
+		private void end() {
+			codec = null;
+			inUse = false;
+			if (buf.length > MAX_RETAINED_CAPACITY)
+				buf = new byte[256];
+		}
+
+		private void ensure(int n) {
+			if (buf.length - pos < n)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+		}
+
+		public void writeByte(int b) {
+			ensure(1);
+			buf[pos++] = (byte) b;
+		}
+
+		public void writeBoolean(boolean b) {
+			writeByte(b ? 1 : 0);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, buf, pos, len);
+			pos += len;
+		}
+
+		/**
+		 * Writes a zigzag encoded variable-length number, one byte for -64 to 63.
+		 */
+		public void writeInt(int v) {
+			writeUnsigned((v << 1) ^ (v >> 31));
+		}
+
+		/**
+		 * Writes a zigzag encoded variable-length number.
+		 */
+		public void writeLong(long v) {
+			long zigzag = (v << 1) ^ (v >> 63);
+			ensure(10);
+			while ((zigzag & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			buf[pos++] = (byte) zigzag;
+		}
+
+		private void writeUnsigned(int v) {
+			ensure(5);
+			while ((v & ~0x7F) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		private void writeFixed(int v, int bytes) {
+			ensure(bytes);
+			for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8)
+				buf[pos++] = (byte) (v >>> shift);
+		}
+
+		public void writeFloat(float v) {
+			writeFixed(Float.floatToRawIntBits(v), 4);
+		}
+
+		public void writeDouble(double v) {
+			long bits = Double.doubleToRawLongBits(v);
+			writeFixed((int) (bits >>> 32), 4);
+			writeFixed((int) bits, 4);
+		}
+
+		/**
+		 * Writes a nullable string as UTF-8, or as UTF-16 if it contains unpaired
+		 * surrogates.
+		 */
+		public void writeString(String s) {
+			if (s == null) {
+				writeUnsigned(0);
+				return;
+			}
+			int length = s.length();
+			int bytes = 0;
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80)
+					bytes++;
+				else if (c < 0x800)
+					bytes += 2;
+				else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					bytes += 4;
+					i++;
+				} else if (Character.isSurrogate(c)) {
+					writeChars(s);
+					return;
+				} else
+					bytes += 3;
+			}
+			writeUnsigned((bytes << 1) + 1);
+			ensure(bytes);
+			byte[] buf = this.buf;
+			int p = pos;
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					buf[p++] = (byte) c;
+				} else if (c < 0x800) {
+					buf[p++] = (byte) (0xC0 | (c >> 6));
+					buf[p++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					buf[p++] = (byte) (0xF0 | (cp >> 18));
+					buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[p++] = (byte) (0x80 | (cp & 0x3F));
+				} else {
+					buf[p++] = (byte) (0xE0 | (c >> 12));
+					buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buf[p++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			pos = p;
+		}
+
+		/**
+		 * Writes {@code s} as UTF-16 chars, which keeps unpaired surrogates that
+		 * UTF-8 cannot represent.
+		 */
+		private void writeChars(String s) {
+			int length = s.length();
+			writeUnsigned((length << 1) + 2);
+			ensure(length * 2);
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				buf[pos++] = (byte) (c >>> 8);
+				buf[pos++] = (byte) c;
+			}
+		}
+
+		/**
+		 * Writes any value this codec supports.
+		 */
+		public void writeObject(Object obj) throws IOException {
+			if (obj == null) {
+				writeByte(NULL);
+				return;
+			}
+			byte tag = TAGS.get(obj.getClass());
+			switch (tag) {
+			case TRUE:
+				writeByte((Boolean) obj ? TRUE : FALSE);
+				return;
+			case BYTE:
+				writeByte(BYTE);
+				writeByte((Byte) obj);
+				return;
+			case SHORT:
+				writeByte(SHORT);
+				writeFixed((Short) obj, 2);
+				return;
+			case CHAR:
+				writeByte(CHAR);
+				writeFixed((Character) obj, 2);
+				return;
+			case INT:
+				writeByte(INT);
+				writeInt((Integer) obj);
+				return;
+			case LONG:
+				writeByte(LONG);
+				writeLong((Long) obj);
+				return;
+			case FLOAT:
+				writeByte(FLOAT);
+				writeFloat((Float) obj);
+				return;
+			case DOUBLE:
+				writeByte(DOUBLE);
+				writeDouble((Double) obj);
+				return;
+			case STRING:
+				writeByte(STRING);
+				writeString((String) obj);
+				return;
+			case TREE_SET:
+				if (((TreeSet<?>) obj).comparator() != null)
+					break;
+				writeCollection(TREE_SET, (Collection<?>) obj);
+				return;
+			case TREE_MAP:
+				if (((TreeMap<?, ?>) obj).comparator() != null)
+					break;
+				writeMap(TREE_MAP, (Map<?, ?>) obj);
+				return;
+			case ARRAY_LIST:
+			case LINKED_LIST:
+			case HASH_SET:
+			case LINKED_HASH_SET:
+				writeCollection(tag, (Collection<?>) obj);
+				return;
+			case HASH_MAP:
+			case LINKED_HASH_MAP:
+				writeMap(tag, (Map<?, ?>) obj);
+				return;
+			case SERIALIZED:
+				Registration registration = codec.byType.get(obj.getClass());
+				if (registration != null) {
+					writeByte(REGISTERED);
+					writeUnsigned(registration.id);
+					registration.serializer.write(this, obj);
+					return;
+				}
+				break;
+			default:
+				writeArray(tag, obj);
+				return;
+			}
+			byte[] bytes = codec.fallback.encode(obj);
+			writeByte(SERIALIZED);
+			writeUnsigned(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		private void writeCollection(byte tag, Collection<?> c) throws IOException {
+			writeByte(tag);
+			writeUnsigned(c.size());
+			for (Object o : c)
+				writeObject(o);
+		}
+
+		private void writeMap(byte tag, Map<?, ?> map) throws IOException {
+			writeByte(tag);
+			writeUnsigned(map.size());
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+				writeObject(e.getKey());
+				writeObject(e.getValue());
+			}
+		}
+
+		private void writeArray(byte tag, Object array) throws IOException {
+			writeByte(tag);
+			switch (tag) {
+			case BYTE_ARRAY:
+				byte[] bytes = (byte[]) array;
+				writeUnsigned(bytes.length);
+				write(bytes, 0, bytes.length);
+				break;
+			case SHORT_ARRAY:
+				short[] shorts = (short[]) array;
+				writeUnsigned(shorts.length);
+				ensure(shorts.length * 2);
+				for (short v : shorts)
+					writeFixed(v, 2);
+				break;
+			case CHAR_ARRAY:
+				char[] chars = (char[]) array;
+				writeUnsigned(chars.length);
+				ensure(chars.length * 2);
+				for (char v : chars)
+					writeFixed(v, 2);
+				break;
+			case INT_ARRAY:
+				int[] ints = (int[]) array;
+				writeUnsigned(ints.length);
+				for (int v : ints)
+					writeInt(v);
+				break;
+			case LONG_ARRAY:
+				long[] longs = (long[]) array;
+				writeUnsigned(longs.length);
+				for (long v : longs)
+					writeLong(v);
+				break;
+			case FLOAT_ARRAY:
+				float[] floats = (float[]) array;
+				writeUnsigned(floats.length);
+				ensure(floats.length * 4);
+				for (float v : floats)
+					writeFloat(v);
+				break;
+			case DOUBLE_ARRAY:
+				double[] doubles = (double[]) array;
+				writeUnsigned(doubles.length);
+				ensure(doubles.length * 8);
+				for (double v : doubles)
+					writeDouble(v);
+				break;
+			case BOOLEAN_ARRAY:
+				boolean[] booleans = (boolean[]) array;
+				writeUnsigned(booleans.length);
+				ensure(booleans.length);
+				for (boolean v : booleans)
+					buf[pos++] = (byte) (v ? 1 : 0);
+				break;
+			case STRING_ARRAY:
+				String[] strings = (String[]) array;
+				writeUnsigned(strings.length);
+				for (String v : strings)
+					writeString(v);
+				break;
+			case OBJECT_ARRAY:
+				Object[] objects = (Object[]) array;
+				writeUnsigned(objects.length);
+				for (Object v : objects)
+					writeObject(v);
+				break;
+			default:
+				throw new IllegalStateException("Unknown tag " + tag);
+			}
+		}
+	}
+
+	/**
+	 * Reads values from a byte array.
+	 */
+	public static final class Input {
+
+		private final BinaryCodec codec;
+		private final byte[] buf;
+		private int pos;
+
+		private Input(BinaryCodec codec, byte[] buf, int pos) {
+			this.codec = codec;
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		private void require(int n) throws EOFException {
+			if (n < 0 || buf.length - pos < n)
+				throw new EOFException();
+		}
+
+		public byte readByte() throws IOException {
+			require(1);
+			return buf[pos++];
+		}
+
+		public boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		public void readFully(byte[] b, int off, int len) throws IOException {
+			require(len);
+			System.arraycopy(buf, pos, b, off, len);
+			pos += len;
+		}
+
+		public int readInt() throws IOException {
+			int v = readUnsigned();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		public long readLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return (v >>> 1) ^ -(v & 1);
+			}
+			throw new StreamCorruptedException("Malformed number");
+		}
+
+		private int readUnsigned() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				byte b = readByte();
+				v |= (b & 0x7F) << shift;
+				if (b >= 0)
+					return v;
+			}
+			throw new StreamCorruptedException("Malformed number");
+		}
+
+		/**
+		 * Reads a length and checks that at least {@code minBytes} per element
+		 * are left, so corrupt lengths cannot cause huge allocations.
+		 */
+		private int readLength(int minBytes) throws IOException {
+			int n = readUnsigned();
+			if (n < 0 || (long) n * minBytes > buf.length - pos)
+				throw new StreamCorruptedException("Invalid length " + n);
+			return n;
+		}
+
+		private int readFixed(int bytes) throws IOException {
+			require(bytes);
+			int v = 0;
+			for (int i = 0; i < bytes; i++)
+				v = (v << 8) | (buf[pos++] & 0xFF);
+			return v;
+		}
+
+		public float readFloat() throws IOException {
+			return Float.intBitsToFloat(readFixed(4));
+		}
+
+		public double readDouble() throws IOException {
+			long high = readFixed(4) & 0xFFFFFFFFL;
+			return Double.longBitsToDouble(high << 32 | (readFixed(4) & 0xFFFFFFFFL));
+		}
+
+		public String readString() throws IOException {
+			int header = readUnsigned();
+			if (header == 0)
+				return null;
+			// lowest bit of header - 1: 0 for UTF-8 bytes, 1 for UTF-16 chars
+			int n = (header - 1) >>> 1;
+			if (((header - 1) & 1) == 0) {
+				require(n);
+				String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+				pos += n;
+				return s;
+			}
+			if (n > (buf.length - pos) / 2)
+				throw new EOFException();
+			char[] chars = new char[n];
+			for (int i = 0; i < n; i++)
+				chars[i] = (char) readFixed(2);
+			return new String(chars);
+		}
+
+		public Object readObject() throws IOException, ClassNotFoundException {
+			byte tag = readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case BYTE:
+				return readByte();
+			case SHORT:
+				return (short) readFixed(2);
+			case CHAR:
+				return (char) readFixed(2);
+			case INT:
+				return readInt();
+			case LONG:
+				return readLong();
+			case FLOAT:
+				return readFloat();
+			case DOUBLE:
+				return readDouble();
+			case STRING:
+				return readString();
+			case ARRAY_LIST: {
+				int n = readLength(1);
+				return readElements(new ArrayList<>(n), n);
+			}
+			case LINKED_LIST:
+				return readElements(new LinkedList<>(), readLength(1));
+			case HASH_SET: {
+				int n = readLength(1);
+				return readElements(new HashSet<>(capacity(n)), n);
+			}
+			case LINKED_HASH_SET: {
+				int n = readLength(1);
+				return readElements(new LinkedHashSet<>(capacity(n)), n);
+			}
+			case TREE_SET:
+				return readElements(new TreeSet<>(), readLength(1));
+			case HASH_MAP: {
+				int n = readLength(2);
+				return readEntries(new HashMap<>(capacity(n)), n);
+			}
+			case LINKED_HASH_MAP: {
+				int n = readLength(2);
+				return readEntries(new LinkedHashMap<>(capacity(n)), n);
+			}
+			case TREE_MAP:
+				return readEntries(new TreeMap<>(), readLength(2));
+			case REGISTERED: {
+				int id = readUnsigned();
+				Registration[] ids = codec.byId;
+				if (id < 0 || id >= ids.length || ids[id] == null)
+					throw new ClassNotFoundException("No type registered for id " + id);
+				return ids[id].serializer.read(this);
+			}
+			case SERIALIZED: {
+				int n = readLength(1);
+				byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+				pos += n;
+				return codec.fallback.decode(bytes);
+			}
+			default:
+				return readArray(tag);
+			}
+		}
+
+		private static int capacity(int size) {
+			return (int) Math.min(1 << 30, size * 4L / 3 + 1);
+		}
+
+		private Collection<Object> readElements(Collection<Object> c, int n)
+				throws IOException, ClassNotFoundException {
+			for (int i = 0; i < n; i++)
+				c.add(readObject());
+			return c;
+		}
+
+		private Map<Object, Object> readEntries(Map<Object, Object> map, int n)
+				throws IOException, ClassNotFoundException {
+			for (int i = 0; i < n; i++)
+				map.put(readObject(), readObject());
+			return map;
+		}
+
+		private Object readArray(byte tag) throws IOException, ClassNotFoundException {
+			switch (tag) {
+			case BYTE_ARRAY: {
+				byte[] a = new byte[readLength(1)];
+				readFully(a, 0, a.length);
+				return a;
+			}
+			case SHORT_ARRAY: {
+				short[] a = new short[readLength(2)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = (short) readFixed(2);
+				return a;
+			}
+			case CHAR_ARRAY: {
+				char[] a = new char[readLength(2)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = (char) readFixed(2);
+				return a;
+			}
+			case INT_ARRAY: {
+				int[] a = new int[readLength(1)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readInt();
+				return a;
+			}
+			case LONG_ARRAY: {
+				long[] a = new long[readLength(1)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readLong();
+				return a;
+			}
+			case FLOAT_ARRAY: {
+				float[] a = new float[readLength(4)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readFloat();
+				return a;
+			}
+			case DOUBLE_ARRAY: {
+				double[] a = new double[readLength(8)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readDouble();
+				return a;
+			}
+			case BOOLEAN_ARRAY: {
+				boolean[] a = new boolean[readLength(1)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = buf[pos++] != 0;
+				return a;
+			}
+			case STRING_ARRAY: {
+				String[] a = new String[readLength(1)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readString();
+				return a;
+			}
+			case OBJECT_ARRAY: {
+				Object[] a = new Object[readLength(1)];
+				for (int i = 0; i < a.length; i++)
+					a[i] = readObject();
+				return a;
+			}
+			default:
+				throw new StreamCorruptedException("Unknown tag " + tag);
+			}
+		}
+	}
+}
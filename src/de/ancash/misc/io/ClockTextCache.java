@@ -0,0 +1,74 @@
+package de.ancash.misc.io;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Renders {@code yyyy-MM-dd HH:mm:ss.SSS} timestamps without allocating. Each
+ * thread keeps the text of the last rendered second; within that second only
+ * the millisecond digits are rewritten, the prefix (including the default zone
+ * lookup) is rebuilt when the second changes.
+ */
+public final class ClockTextCache {
+
+	private static final int FULL_LENGTH = 23;
+	private static final int TIME_OFFSET = 11;
+
+	private static final ThreadLocal<ClockTextCache> CACHE = ThreadLocal.withInitial(ClockTextCache::new);
+
+	private final char[] text = "0000-00-00 00:00:00.000".toCharArray();
+	private long second = Long.MIN_VALUE;
+
+	private ClockTextCache() {
+	}
+
+	/**
+	 * Appends {@code yyyy-MM-dd HH:mm:ss.SSS}.
+	 */
+	public static void appendDateTime(StringBuilder builder, long millis) {
+		CACHE.get().update(millis).appendTo(builder, 0);
+	}
+
+	/**
+	 * Appends {@code HH:mm:ss.SSS}.
+	 */
+	public static void appendTime(StringBuilder builder, long millis) {
+		CACHE.get().update(millis).appendTo(builder, TIME_OFFSET);
+	}
+
+	private ClockTextCache update(long millis) {
+		long sec = Math.floorDiv(millis, 1000);
+		if (sec != second) {
+			second = sec;
+			renderSecond(LocalDateTime.ofInstant(Instant.ofEpochSecond(sec), ZoneId.systemDefault()));
+		}
+		int ms = Math.floorMod(millis, 1000);
+		text[20] = (char) ('0' + ms / 100);
+		text[21] = (char) ('0' + ms / 10 % 10);
+		text[22] = (char) ('0' + ms % 10);
+		return this;
+	}
+
+	private void renderSecond(LocalDateTime dt) {
+		int year = dt.getYear();
+		text[0] = (char) ('0' + year / 1000 % 10);
+		text[1] = (char) ('0' + year / 100 % 10);
+		text[2] = (char) ('0' + year / 10 % 10);
+		text[3] = (char) ('0' + year % 10);
+		twoDigits(5, dt.getMonthValue());
+		twoDigits(8, dt.getDayOfMonth());
+		twoDigits(11, dt.getHour());
+		twoDigits(14, dt.getMinute());
+		twoDigits(17, dt.getSecond());
+	}
+
+	private void twoDigits(int pos, int value) {
+		text[pos] = (char) ('0' + value / 10);
+		text[pos + 1] = (char) ('0' + value % 10);
+	}
+
+	private void appendTo(StringBuilder builder, int from) {
+		builder.append(text, from, FULL_LENGTH - from);
+	}
+}
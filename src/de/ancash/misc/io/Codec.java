@@ -0,0 +1,19 @@
+package de.ancash.misc.io;
+
+import java.io.IOException;
+
+/**
+ * Turns objects into bytes and back, see
+ * {@link SerializationUtils#setDefaultCodec(Codec)}.
+ */
+public interface Codec {
+
+	byte[] encode(Object obj) throws IOException;
+
+	Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+
+	/**
+	 * @return whether {@code bytes} start like output of this codec
+	 */
+	boolean canDecode(byte[] bytes);
+}
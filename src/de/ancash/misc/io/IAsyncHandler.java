@@ -0,0 +1,323 @@
+package de.ancash.misc.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Decouples callers from a slow {@link Handler}. {@link #publish(LogRecord)}
+ * only stores the record in a bounded, preallocated ring buffer; a single
+ * consumer thread hands the records to the delegate in batches and flushes the
+ * delegate once per batch. Pending records are written on {@link #close()}.
+ */
+public class IAsyncHandler extends Handler {
+
+	public enum OverflowPolicy {
+		/**
+		 * Callers wait until the consumer made room.
+		 */
+		BLOCK,
+		/**
+		 * Records below {@link IAsyncHandler#getDropBelow()} are dropped (and
+		 * counted), all others wait.
+		 */
+		DROP_LOWEST_LEVELS,
+		/**
+		 * Records are dropped and counted.
+		 */
+		DROP;
+	}
+
+	private static final int DEFAULT_BATCH_SIZE = 256;
+	private static final long CLOSE_TIMEOUT_SECONDS = 10;
+	private static final ThreadLocal<String> ORIGIN_THREAD_NAME = new ThreadLocal<>();
+
+	private final Handler delegate;
+	private final OverflowPolicy policy;
+	private final LogRecord[] records;
+	private final String[] threadNames;
+	private final String[][] contexts;
+	private final int mask;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition progress = lock.newCondition();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Consumer consumer;
+	private volatile Level dropBelow = Level.WARNING;
+	private long head;
+	private long tail;
+	private long written;
+	private boolean closed;
+	private boolean stopped;
+
+	public IAsyncHandler(Handler delegate, int capacity, OverflowPolicy policy) {
+		this(delegate, capacity, policy, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param capacity  size of the ring buffer, rounded up to a power of two
+	 * @param batchSize max records handed to the delegate between two flushes
+	 */
+	public IAsyncHandler(Handler delegate, int capacity, OverflowPolicy policy, int batchSize) {
+		if (capacity < 1 || batchSize < 1)
+			throw new IllegalArgumentException("capacity and batch size must be positive");
+		this.delegate = delegate;
+		this.policy = policy;
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.records = new LogRecord[size];
+		this.threadNames = new String[size];
+		this.contexts = new String[size][];
+		this.mask = size - 1;
+		this.consumer = new Consumer(Math.min(batchSize, size));
+		consumer.start();
+	}
+
+	/**
+	 * @return the name of the thread that logged the record currently being
+	 *         handled, which is not the current thread on a consumer thread or
+	 *         when another handler publishes on its behalf
+	 */
+	public static String currentThreadName() {
+		Thread t = Thread.currentThread();
+		if (t instanceof Consumer) {
+			String origin = ((Consumer) t).originThreadName;
+			if (origin != null)
+				return origin;
+		}
+		String origin = ORIGIN_THREAD_NAME.get();
+		return origin != null ? origin : t.getName();
+	}
+
+	/**
+	 * Sets the name returned by {@link #currentThreadName()} on this thread, null
+	 * to reset.
+	 */
+	static void setOriginThreadName(String threadName) {
+		if (threadName == null)
+			ORIGIN_THREAD_NAME.remove();
+		else
+			ORIGIN_THREAD_NAME.set(threadName);
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record) || !delegate.isLoggable(record))
+			return;
+		if (Thread.currentThread() == consumer) {
+			delegate.publish(record);
+			return;
+		}
+		String threadName = currentThreadName();
+		lock.lock();
+		try {
+			while (tail - head == records.length) {
+				if (closed || policy == OverflowPolicy.DROP || (policy == OverflowPolicy.DROP_LOWEST_LEVELS
+						&& record.getLevel().intValue() < dropBelow.intValue())) {
+					dropped.incrementAndGet();
+					return;
+				}
+				notFull.awaitUninterruptibly();
+			}
+			if (closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+			int index = (int) (tail++ & mask);
+			records[index] = record;
+			threadNames[index] = threadName;
+			contexts[index] = ILogContext.snapshot(contexts[index]);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every record published before this call has been written.
+	 */
+	@Override
+	public void flush() {
+		if (Thread.currentThread() == consumer) {
+			delegate.flush();
+			return;
+		}
+		lock.lock();
+		try {
+			long target = tail;
+			while (written < target && !stopped)
+				progress.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws SecurityException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			consumer.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// closing under a consumer that is still writing would lose its records
+		if (consumer.isAlive()) {
+			reportError("Consumer still writing after " + CLOSE_TIMEOUT_SECONDS + "s, delegate not closed", null,
+					ErrorManager.CLOSE_FAILURE);
+			return;
+		}
+		delegate.close();
+	}
+
+	public Handler getDelegate() {
+		return delegate;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public Level getDropBelow() {
+		return dropBelow;
+	}
+
+	/**
+	 * Sets the level below which {@link OverflowPolicy#DROP_LOWEST_LEVELS} drops
+	 * records. Default is {@link Level#WARNING}.
+	 */
+	public IAsyncHandler setDropBelow(Level dropBelow) {
+		this.dropBelow = dropBelow;
+		return this;
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public int getCapacity() {
+		return records.length;
+	}
+
+	public int getQueueSize() {
+		lock.lock();
+		try {
+			return (int) (tail - head);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private final class Consumer extends Thread {
+
+		private final LogRecord[] batch;
+		private final String[] batchThreadNames;
+		private final String[][] batchContexts;
+		private volatile String originThreadName;
+
+		private Consumer(int batchSize) {
+			super("IAsyncHandler-" + delegate.getClass().getSimpleName());
+			this.batch = new LogRecord[batchSize];
+			this.batchThreadNames = new String[batchSize];
+			this.batchContexts = new String[batchSize][];
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				consume();
+			} finally {
+				// if an error escaped, drop further records instead of blocking
+				// publishers forever
+				lock.lock();
+				try {
+					closed = true;
+					stopped = true;
+					notFull.signalAll();
+					progress.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		private void consume() {
+			int n;
+			while ((n = take()) > 0) {
+				for (int i = 0; i < n; i++) {
+					originThreadName = batchThreadNames[i];
+					ILogContext.setOrigin(batchContexts[i]);
+					try {
+						delegate.publish(batch[i]);
+					} catch (Throwable th) {
+						reportError(null, asException(th), ErrorManager.WRITE_FAILURE);
+					}
+					batch[i] = null;
+					batchThreadNames[i] = null;
+				}
+				originThreadName = null;
+				ILogContext.setOrigin(null);
+				try {
+					delegate.flush();
+				} catch (Throwable th) {
+					reportError(null, asException(th), ErrorManager.FLUSH_FAILURE);
+				}
+				lock.lock();
+				try {
+					written += n;
+					progress.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		private Exception asException(Throwable th) {
+			return th instanceof Exception ? (Exception) th : new Exception(th);
+		}
+
+		/**
+		 * Moves up to one batch out of the ring. Returns 0 once closed and drained.
+		 */
+		private int take() {
+			lock.lock();
+			try {
+				while (head == tail) {
+					if (closed)
+						return 0;
+					notEmpty.awaitUninterruptibly();
+				}
+				int n = (int) Math.min(tail - head, batch.length);
+				for (int i = 0; i < n; i++) {
+					int index = (int) (head++ & mask);
+					batch[i] = records[index];
+					batchThreadNames[i] = threadNames[index];
+					records[index] = null;
+					threadNames[index] = null;
+					// swap so both arrays are reused by the next snapshot
+					String[] context = batchContexts[i];
+					batchContexts[i] = contexts[index];
+					contexts[index] = context;
+				}
+				notFull.signalAll();
+				return n;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
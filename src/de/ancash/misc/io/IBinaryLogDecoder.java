@@ -0,0 +1,214 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Renders files written with {@link IBinaryLogFormatter} in the text layout of
+ * {@link IFileLogger}. Run with file arguments to print them to stdout:
+ * {@code java de.ancash.misc.io.IBinaryLogDecoder 2024-01-01-00-00-00.log}.
+ */
+public class IBinaryLogDecoder {
+
+	private final DataInputStream in;
+	private final List<String> threads = new ArrayList<>();
+	private final List<String> templates = new ArrayList<>();
+	private final StringBuilder line = new StringBuilder(256);
+	private long lastMillis;
+
+	public IBinaryLogDecoder(InputStream in) {
+		this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 1 << 16));
+	}
+
+	public static void main(String[] args) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		for (String arg : args)
+			try (InputStream in = open(new File(arg))) {
+				new IBinaryLogDecoder(in).decode(out);
+			}
+		out.flush();
+	}
+
+	/**
+	 * Opens a log file, decompressing it if it is gzipped.
+	 */
+	public static InputStream open(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		if (file.getName().endsWith(IFileHandler.COMPRESSED_EXTENSION))
+			in = new GZIPInputStream(in, 1 << 16);
+		return in;
+	}
+
+	/**
+	 * @return whether the stream starts with a binary log header. The stream must
+	 *         support mark/reset.
+	 */
+	public static boolean isBinary(InputStream in) throws IOException {
+		in.mark(IBinaryLogFormatter.MAGIC.length + 1);
+		try {
+			if (in.read() != IBinaryLogFormatter.TAG_HEAD)
+				return false;
+			for (byte b : IBinaryLogFormatter.MAGIC)
+				if (in.read() != b)
+					return false;
+			return true;
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Decodes all remaining records to {@code out}.
+	 */
+	public void decode(Appendable out) throws IOException {
+		while (next())
+			out.append(line);
+	}
+
+	/**
+	 * Reads up to the next record.
+	 *
+	 * @return false at the end of the stream
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int tag = in.read();
+			switch (tag) {
+			case -1:
+				return false;
+			case IBinaryLogFormatter.TAG_HEAD:
+				readHead();
+				break;
+			case IBinaryLogFormatter.TAG_THREAD:
+				define(threads);
+				break;
+			case IBinaryLogFormatter.TAG_TEMPLATE:
+				define(templates);
+				break;
+			case IBinaryLogFormatter.TAG_RECORD:
+				readRecord();
+				return true;
+			default:
+				throw new IOException("Unknown entry tag " + tag);
+			}
+		}
+	}
+
+	/**
+	 * @return the text of the record read by the last {@link #next()} call,
+	 *         including the trailing line break
+	 */
+	public CharSequence getLine() {
+		return line;
+	}
+
+	private void readHead() throws IOException {
+		for (byte b : IBinaryLogFormatter.MAGIC)
+			if (in.readByte() != b)
+				throw new IOException("Not a binary log");
+		int version = in.readByte();
+		if (version != IBinaryLogFormatter.VERSION)
+			throw new IOException("Unsupported binary log version " + version);
+		threads.clear();
+		templates.clear();
+		lastMillis = 0;
+	}
+
+	private void define(List<String> dictionary) throws IOException {
+		int id = (int) readVarLong();
+		String value = readString();
+		while (dictionary.size() < id)
+			dictionary.add(null);
+		dictionary.set(id - 1, value);
+	}
+
+	private void readRecord() throws IOException {
+		long delta = readZigZag();
+		lastMillis += delta;
+		Level level = readLevel();
+		readVarLong(); // thread id, not part of the text layout
+		int template = (int) readVarLong();
+		String message = template == 0 ? readString() : templates.get(template - 1);
+		int argc = (int) readVarLong();
+		Object[] args = argc == 0 ? null : new Object[argc];
+		for (int i = 0; i < argc; i++)
+			args[i] = readArgument();
+		String stackTrace = readString();
+		line.setLength(0);
+		IFileLogger.appendLine(line, lastMillis, level, message, args, stackTrace.isEmpty() ? null : stackTrace);
+	}
+
+	private Level readLevel() throws IOException {
+		int code = in.readUnsignedByte();
+		if (code > 0 && code < IBinaryLogFormatter.LEVELS.length)
+			return IBinaryLogFormatter.LEVELS[code];
+		int value = (int) readVarLong();
+		return new DecodedLevel(readString(), value);
+	}
+
+	private Object readArgument() throws IOException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+		case IBinaryLogFormatter.ARG_NULL:
+			return null;
+		case IBinaryLogFormatter.ARG_STRING:
+			return readString();
+		case IBinaryLogFormatter.ARG_INT:
+			return (int) readZigZag();
+		case IBinaryLogFormatter.ARG_LONG:
+			return readZigZag();
+		case IBinaryLogFormatter.ARG_DOUBLE:
+			return in.readDouble();
+		case IBinaryLogFormatter.ARG_BOOLEAN:
+			return in.readBoolean();
+		default:
+			throw new IOException("Unknown argument type " + type);
+		}
+	}
+
+	private String readString() throws IOException {
+		byte[] bytes = new byte[(int) readVarLong()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private long readZigZag() throws IOException {
+		long v = readVarLong();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private long readVarLong() throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static final class DecodedLevel extends Level {
+
+		private static final long serialVersionUID = 1L;
+
+		private DecodedLevel(String name, int value) {
+			super(name, value);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package de.ancash.misc.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import de.ancash.libs.org.apache.commons.lang3.exception.ExceptionUtils;
+
+/**
+ * Compact binary encoding of log records, decoded back to the text layout by
+ * {@link IBinaryLogDecoder}. Used by {@link IFileHandler} through
+ * {@link #head()} and {@link #encode(LogRecord)}; {@link #format(LogRecord)}
+ * still renders text for other handlers.
+ * <p>
+ * A file is a sequence of entries, each starting with a tag byte:
+ * <ul>
+ * <li>{@link #TAG_HEAD}: {@code "ILOG"}, version byte. Resets the
+ * dictionaries and the timestamp base.</li>
+ * <li>{@link #TAG_THREAD}: id, name. Defines a thread name.</li>
+ * <li>{@link #TAG_TEMPLATE}: id, text. Defines a message template.</li>
+ * <li>{@link #TAG_RECORD}: timestamp delta (zigzag), level byte (0: custom,
+ * followed by value and name), thread id, template id (0: inline text),
+ * argument count and arguments (type byte and value), stack trace or empty
+ * string.</li>
+ * </ul>
+ * Integers are varints, strings are a varint byte length and UTF-8. Instances
+ * keep per-file dictionaries and are not thread-safe; the handler calls them
+ * under its lock.
+ */
+public class IBinaryLogFormatter extends Formatter {
+
+	public static final byte[] MAGIC = { 'I', 'L', 'O', 'G' };
+	public static final byte VERSION = 1;
+
+	public static final byte TAG_HEAD = 0x7F;
+	public static final byte TAG_THREAD = 1;
+	public static final byte TAG_TEMPLATE = 2;
+	public static final byte TAG_RECORD = 3;
+
+	public static final byte ARG_NULL = 0;
+	public static final byte ARG_STRING = 1;
+	public static final byte ARG_INT = 2;
+	public static final byte ARG_LONG = 3;
+	public static final byte ARG_DOUBLE = 4;
+	public static final byte ARG_BOOLEAN = 5;
+
+	static final Level[] LEVELS = { null, Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE,
+			Level.FINER, Level.FINEST, Level.ALL, Level.OFF };
+
+	private static final int MAX_TEMPLATES = 1 << 16;
+	private static final int MAX_TEMPLATE_LENGTH = 1024;
+	// characters of all templates of a file, bounds the dictionary's memory
+	private static final int MAX_TEMPLATE_CHARS = 1 << 20;
+
+	private final Map<String, Integer> threads = new HashMap<>();
+	private final Map<String, Integer> templates = new HashMap<>();
+	private byte[] buffer = new byte[512];
+	private int length;
+	private long lastMillis;
+	private int templateChars;
+
+	/**
+	 * Resets the dictionaries and encodes a file header.
+	 *
+	 * @return number of bytes in {@link #getBuffer()}
+	 */
+	public int head() {
+		threads.clear();
+		templates.clear();
+		templateChars = 0;
+		lastMillis = 0;
+		length = 0;
+		writeByte(TAG_HEAD);
+		for (byte b : MAGIC)
+			writeByte(b);
+		writeByte(VERSION);
+		return length;
+	}
+
+	/**
+	 * Encodes {@code record}, preceded by any dictionary entries it needs. Only
+	 * messages with parameters are kept as templates. If encoding fails, the
+	 * dictionary entries and timestamp base it changed are restored, as the caller discards the
+	 * buffer with their definitions.
+	 *
+	 * @return number of bytes in {@link #getBuffer()}
+	 */
+	public int encode(LogRecord record) {
+		length = 0;
+		String threadName = IAsyncHandler.currentThreadName();
+		boolean newThread = !threads.containsKey(threadName);
+		String message = record.getMessage();
+		Object[] params = record.getParameters();
+		boolean internable = message != null && message.length() <= MAX_TEMPLATE_LENGTH && params != null
+				&& params.length > 0;
+		boolean newTemplate = internable && !templates.containsKey(message);
+		long millisBefore = lastMillis;
+		try {
+			return encode(record, threadName, message, params, internable);
+		} catch (RuntimeException | Error ex) {
+			if (newThread)
+				threads.remove(threadName);
+			if (newTemplate && templates.remove(message) != null)
+				templateChars -= message.length();
+			lastMillis = millisBefore;
+			throw ex;
+		}
+	}
+
+	private int encode(LogRecord record, String threadName, String message, Object[] params, boolean internable) {
+		int thread = intern(threads, threadName, TAG_THREAD, Integer.MAX_VALUE);
+		int template = 0;
+		if (internable) {
+			if (templates.containsKey(message)) {
+				template = templates.get(message);
+			} else if (templateChars + message.length() <= MAX_TEMPLATE_CHARS) {
+				template = intern(templates, message, TAG_TEMPLATE, MAX_TEMPLATES);
+				if (template != 0)
+					templateChars += message.length();
+			}
+		}
+
+		writeByte(TAG_RECORD);
+		long delta = record.getMillis() - lastMillis;
+		lastMillis = record.getMillis();
+		writeVarLong((delta << 1) ^ (delta >> 63));
+		writeLevel(record.getLevel());
+		writeVarLong(thread);
+		writeVarLong(template);
+		if (template == 0)
+			writeString(String.valueOf(message));
+		int argc = params == null ? 0 : params.length;
+		writeVarLong(argc);
+		for (int i = 0; i < argc; i++)
+			writeArgument(params[i]);
+		Throwable thrown = record.getThrown();
+		writeString(thrown == null ? "" : ExceptionUtils.getStackTrace(thrown));
+		return length;
+	}
+
+	/**
+	 * @return the bytes of the last {@link #head()} or {@link #encode(LogRecord)}
+	 *         call
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Renders the record as text, for handlers that do not write binary.
+	 */
+	@Override
+	public String format(LogRecord record) {
+		Throwable thrown = record.getThrown();
+		StringBuilder builder = new StringBuilder();
+		IFileLogger.appendLine(builder, record.getMillis(), record.getLevel(), record.getMessage(),
+				record.getParameters(), thrown == null ? null : ExceptionUtils.getStackTrace(thrown));
+		return builder.toString();
+	}
+
+	private int intern(Map<String, Integer> dictionary, String value, byte tag, int max) {
+		Integer id = dictionary.get(value);
+		if (id != null)
+			return id;
+		if (dictionary.size() >= max)
+			return 0;
+		id = dictionary.size() + 1;
+		dictionary.put(value, id);
+		writeByte(tag);
+		writeVarLong(id);
+		writeString(value);
+		return id;
+	}
+
+	private void writeLevel(Level level) {
+		for (int i = 1; i < LEVELS.length; i++) {
+			if (LEVELS[i] == level) {
+				writeByte((byte) i);
+				return;
+			}
+		}
+		writeByte((byte) 0);
+		writeVarLong(level.intValue() & 0xFFFFFFFFL);
+		writeString(level.getName());
+	}
+
+	private void writeArgument(Object arg) {
+		if (arg == null) {
+			writeByte(ARG_NULL);
+		} else if (arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+			writeByte(ARG_INT);
+			long v = ((Number) arg).intValue();
+			writeVarLong((v << 1) ^ (v >> 63));
+		} else if (arg instanceof Long) {
+			writeByte(ARG_LONG);
+			long v = (Long) arg;
+			writeVarLong((v << 1) ^ (v >> 63));
+		} else if (arg instanceof Double) {
+			writeByte(ARG_DOUBLE);
+			long bits = Double.doubleToRawLongBits((Double) arg);
+			ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				buffer[length++] = (byte) (bits >>> shift);
+		} else if (arg instanceof Boolean) {
+			writeByte(ARG_BOOLEAN);
+			writeByte((byte) ((Boolean) arg ? 1 : 0));
+		} else {
+			writeByte(ARG_STRING);
+			writeString(arg.toString());
+		}
+	}
+
+	private void writeString(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void writeVarLong(long v) {
+		ensure(10);
+		while ((v & ~0x7FL) != 0) {
+			buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buffer[length++] = (byte) v;
+	}
+
+	private void writeByte(byte b) {
+		ensure(1);
+		buffer[length++] = b;
+	}
+
+	private void ensure(int n) {
+		if (length + n > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+	}
+}
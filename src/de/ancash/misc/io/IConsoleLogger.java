@@ -1,7 +1,11 @@
 package de.ancash.misc.io;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -11,9 +15,44 @@ import java.util.logging.Logger;
 
 public class IConsoleLogger extends Formatter {
 
-	private final ConsoleHandler handler = new ConsoleHandler();
+	private final ConsoleHandler handler = new ConsoleHandler() {
+
+		@Override
+		public synchronized void publish(LogRecord record) {
+			LoggingMetrics m = metrics;
+			if (m == null) {
+				super.publish(record);
+				return;
+			}
+			formatted = false;
+			long start = System.nanoTime();
+			super.publish(record);
+			if (formatted) {
+				long nanos = System.nanoTime() - start - formatNanos;
+				// bytes as the handler's writer encodes them, like IFileHandler reports
+				String encoding = getEncoding();
+				Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+				m.recordWrite(nanos, TextEncoder.get(charset).encode(formattedText).limit());
+				formattedText = null;
+			}
+		}
+	};
 	private final Map<Level, String> levelColors = new HashMap<>();
 	private final IFormatter formatter;
+	private final Logger logger;
+	private Handler installed = handler;
+	private volatile LoggingMetrics metrics;
+	private volatile IFlightRecorder recorder;
+	// the stack is only walked for call site rate limiting, otherwise the
+	// record infers its source lazily
+	private volatile boolean callSites;
+	private Thread shutdownHook;
+	// the logger's own level, set again once the recorder no longer needs it lower
+	private Level previousLevel;
+	private boolean levelLowered;
+	private boolean formatted;
+	private long formatNanos;
+	private String formattedText;
 
 	public IConsoleLogger(String format) {
 		this(Logger.getGlobal(), new IFormatter(format, true));
@@ -25,10 +64,204 @@ public class IConsoleLogger extends Formatter {
 
 	public IConsoleLogger(Logger logger, IFormatter formatter) {
 		this.formatter = formatter;
+		this.logger = logger;
 		handler.setFormatter(this);
+		handler.setFilter(formatter.asFilter());
 		logger.addHandler(handler);
 	}
 
+	/**
+	 * @return whether a record of this level would be written or recorded by the
+	 *         flight recorder. Callers can use
+	 *         this to skip building expensive messages.
+	 */
+	public boolean isLoggable(Level level) {
+		if (!logger.isLoggable(level))
+			return false;
+		IFlightRecorder r = recorder;
+		return (r != null && r.getLevel().intValue() <= level.intValue())
+				|| (installed.getLevel().intValue() <= level.intValue() && formatter.isLoggable(level));
+	}
+
+	/**
+	 * Logs the supplied message, the supplier is only called if the level is
+	 * enabled.
+	 */
+	public void log(Level level, Supplier<String> message) {
+		if (!isLoggable(level))
+			return;
+		if (!callSites) {
+			logger.log(level, message);
+			return;
+		}
+		StackWalker.StackFrame caller = LoggerUtils.caller();
+		logger.logp(level, caller == null ? null : caller.getClassName(),
+				caller == null ? null : caller.getMethodName(), message);
+	}
+
+	/**
+	 * Logs a parameterized message ({@code {}} or {@code {0}}), the parameters are
+	 * only rendered if the level is enabled.
+	 */
+	public void log(Level level, String pattern, Object... params) {
+		if (!isLoggable(level))
+			return;
+		if (!callSites) {
+			logger.log(level, pattern, params);
+			return;
+		}
+		StackWalker.StackFrame caller = LoggerUtils.caller();
+		logger.logp(level, caller == null ? null : caller.getClassName(),
+				caller == null ? null : caller.getMethodName(), pattern, params);
+	}
+
+	/**
+	 * Moves console writes to a background thread. Records are queued in a ring
+	 * buffer of the given capacity and written in batches. Queued records are
+	 * written on {@link #close()} or when the JVM exits.
+	 */
+	public synchronized IConsoleLogger async(int capacity, IAsyncHandler.OverflowPolicy policy) {
+		if (installed != handler)
+			throw new IllegalStateException("async must be enabled before other handler wrappers");
+		IAsyncHandler async = new IAsyncHandler(handler, capacity, policy);
+		if (metrics != null)
+			metrics.setAsyncHandler(async);
+		logger.addHandler(async);
+		logger.removeHandler(handler);
+		installed = async;
+		// the consumer is a daemon, queued records would be lost on exit
+		shutdownHook = new Thread(this::close, "IConsoleLogger-flush");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+		return this;
+	}
+
+	/**
+	 * Publishes record counts, bytes written, format and write latencies
+	 * (and queue size when async) as an MBean named {@code name}.
+	 */
+	public synchronized IConsoleLogger metrics(String name) {
+		if (metrics != null)
+			metrics.unregister();
+		LoggingMetrics m = new LoggingMetrics().register(name);
+		if (installed instanceof IAsyncHandler)
+			m.setAsyncHandler((IAsyncHandler) installed);
+		metrics = m;
+		return this;
+	}
+
+	public LoggingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Keeps the last {@code capacity} bytes of the records the logger lets
+	 * through in memory, including those the formatter filters out, and writes
+	 * them to {@code dir} on a SEVERE record or {@link #dumpFlightRecorder()}.
+	 */
+	public IConsoleLogger flightRecorder(File dir, int capacity) {
+		return flightRecorder(dir, capacity, null);
+	}
+
+	/**
+	 * Same as {@link #flightRecorder(File, int)} but only records at or above
+	 * {@code level}. If the logger's level is higher, it is lowered to
+	 * {@code level} until {@link #close()}.
+	 */
+	public synchronized IConsoleLogger flightRecorder(File dir, int capacity, Level level) {
+		if (recorder != null)
+			logger.removeHandler(recorder);
+		restoreLevel();
+		IFlightRecorder r = new IFlightRecorder(dir, capacity);
+		if (level != null) {
+			r.setLevel(level);
+			if (!logger.isLoggable(level)) {
+				previousLevel = logger.getLevel();
+				levelLowered = true;
+				logger.setLevel(level);
+			}
+		}
+		logger.addHandler(r);
+		recorder = r;
+		return this;
+	}
+
+	private void restoreLevel() {
+		if (levelLowered) {
+			logger.setLevel(previousLevel);
+			levelLowered = false;
+		}
+	}
+
+	/**
+	 * @return the dump file
+	 */
+	public File dumpFlightRecorder() throws IOException {
+		IFlightRecorder r = recorder;
+		if (r == null)
+			throw new IllegalStateException("no flight recorder");
+		return r.dump();
+	}
+
+	public IFlightRecorder getFlightRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Collapses identical consecutive records of the same level and thread into
+	 * one record and a {@code Last message repeated N times} line, written once
+	 * a different record arrives or after {@code timeoutMillis}.
+	 */
+	public synchronized IConsoleLogger collapseRepeats(long timeoutMillis) {
+		IRepeatCollapsingHandler collapsing = new IRepeatCollapsingHandler(installed, timeoutMillis);
+		logger.addHandler(collapsing);
+		logger.removeHandler(installed);
+		installed = collapsing;
+		return this;
+	}
+
+	/**
+	 * Limits similar records per level and {@code scope}, writing a summary of
+	 * the suppressed ones once they pass again.
+	 *
+	 * @see IRateLimitingHandler#tokenBucket(double, int)
+	 * @see IRateLimitingHandler#firstThenSample(int, int, long)
+	 */
+	public synchronized IConsoleLogger rateLimit(IRateLimitingHandler.Scope scope,
+			Supplier<IRateLimitingHandler.Limit> limits) {
+		IRateLimitingHandler limited = new IRateLimitingHandler(installed, scope, limits);
+		if (scope == IRateLimitingHandler.Scope.CALL_SITE)
+			callSites = true;
+		logger.addHandler(limited);
+		logger.removeHandler(installed);
+		installed = limited;
+		return this;
+	}
+
+	/**
+	 * Writes pending records and detaches from the logger.
+	 */
+	public synchronized void close() {
+		logger.removeHandler(installed);
+		installed.close();
+		if (recorder != null)
+			logger.removeHandler(recorder);
+		restoreLevel();
+		if (metrics != null)
+			metrics.unregister();
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ex) {
+				// shutting down
+			}
+		}
+		shutdownHook = null;
+	}
+
+	public Handler getHandler() {
+		return installed;
+	}
+
 	public void setLevelColor(Level l, String c) {
 		levelColors.put(l, c == null ? "" : c);
 	}
@@ -42,6 +275,16 @@ public class IConsoleLogger extends Formatter {
 
 	@Override
 	public String format(LogRecord record) {
-		return formatter.format(record);
+		LoggingMetrics m = metrics;
+		if (m == null)
+			return formatter.format(record);
+		long start = System.nanoTime();
+		String str = formatter.format(record);
+		formatNanos = System.nanoTime() - start;
+		formattedText = str;
+		formatted = true;
+		m.recordLevel(record.getLevel());
+		m.recordFormat(formatNanos);
+		return str;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,713 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends formatted records to a log file. Unlike
+ * {@link java.util.logging.FileHandler} flushing after every record can be
+ * turned off, so a caller that writes in batches (see {@link IAsyncHandler})
+ * only pays for one write per batch.
+ * <p>
+ * With {@link #setRolling(long, long, int, boolean)} the handler switches to a
+ * new file once the current one reaches a size or age limit. Rolled files are
+ * compressed and old files deleted on a low-priority background thread.
+ * <p>
+ * {@link #setMemoryMapped(int)} replaces the buffered stream with a
+ * {@link MappedFileOutputStream}.
+ * <p>
+ * With an {@link IBinaryLogFormatter} records are written in its binary
+ * encoding, every new file starting with a fresh header.
+ * <p>
+ * {@link #setIndexed(long, int)} writes a sidecar {@link ILogIndex} for text
+ * files.
+ * <p>
+ * {@link #setDurability(Durability, long)} decides when written records are
+ * forced to the storage device, see {@link Durability}.
+ */
+public class IFileHandler extends Handler {
+
+	/**
+	 * When records are forced to the storage device with
+	 * {@link FileChannel#force(boolean)}.
+	 */
+	public enum Durability {
+		/**
+		 * Never, records are left to the OS page cache. Survives a crash of the
+		 * process but not of the machine.
+		 */
+		PAGE_CACHE,
+		/**
+		 * Every interval, so at most an interval of records is lost.
+		 */
+		PERIODIC,
+		/**
+		 * A record at or above the sync level blocks its publishing thread until a
+		 * force covers it and every record before it. Threads waiting at the same
+		 * time share one force. With an interval the other records are also forced
+		 * periodically.
+		 */
+		GROUP_COMMIT
+	}
+
+	public static final DateTimeFormatter FILE_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+	public static final String LOG_EXTENSION = ".log";
+	public static final String COMPRESSED_EXTENSION = ".gz";
+	private static final Pattern LOG_FILE_NAME = Pattern
+			.compile("\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}-\\d{2}(-\\d+)?\\.log(\\.gz)?");
+
+	private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "IFileHandler-compressor");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "IFileHandler-sync");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final File dir;
+	private volatile File file;
+	private Charset charset = Charset.defaultCharset();
+	private OutputStream out;
+	private long size;
+	private long totalBytes;
+	private volatile LoggingMetrics metrics;
+	private boolean autoFlush = true;
+	private boolean headWritten;
+	private int mapChunkSize;
+	private long indexBucketMillis;
+	private int indexEveryRecords;
+	private ILogIndex.Writer index;
+	private FileChannel channel;
+
+	private volatile Durability durability = Durability.PAGE_CACHE;
+	private long syncInterval;
+	private volatile Level syncLevel = Level.SEVERE;
+	private ScheduledFuture<?> syncTask;
+	// records written, guarded by this
+	private long written;
+	// guarded by syncLock
+	private final Object syncLock = new Object();
+	private boolean syncing;
+	private long durable;
+	private long syncCount;
+
+	private long maxBytes;
+	private long interval;
+	private int maxFiles;
+	// files opened by this handler, oldest first, guarded by itself
+	private final Deque<File> created = new ArrayDeque<>();
+	private boolean compress;
+	private long rollAt = Long.MAX_VALUE;
+
+	public IFileHandler(File file) throws IOException {
+		this.dir = file.getAbsoluteFile().getParentFile();
+		open(file);
+	}
+
+	/**
+	 * @return a not yet existing file in {@code dir} named after the current time
+	 */
+	public static File newLogFile(File dir) {
+		String name = LocalDateTime.now().format(FILE_NAME_FORMATTER);
+		File file = new File(dir, name + LOG_EXTENSION);
+		for (int i = 1; file.exists() || new File(dir, file.getName() + COMPRESSED_EXTENSION).exists(); i++)
+			file = new File(dir, name + "-" + i + LOG_EXTENSION);
+		return file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public LoggingMetrics getMetrics() {
+		return metrics;
+	}
+
+	public IFileHandler setMetrics(LoggingMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public boolean isAutoFlush() {
+		return autoFlush;
+	}
+
+	/**
+	 * @param autoFlush whether every record is flushed to the file right away
+	 */
+	public synchronized IFileHandler setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+		return this;
+	}
+
+	/**
+	 * Switches to appending through a memory-mapped window of
+	 * {@code chunkSize} bytes, or back to a buffered stream if 0. The current
+	 * file is reopened.
+	 */
+	public synchronized IFileHandler setMemoryMapped(int chunkSize) throws IOException {
+		if (chunkSize < 0)
+			throw new IllegalArgumentException("chunk size must not be negative");
+		this.mapChunkSize = chunkSize;
+		if (out != null) {
+			// a sync racing with the reopen counts on the closed channel being forced
+			if (durability != Durability.PAGE_CACHE)
+				forceOpen();
+			out.close();
+			out = openStream(file);
+		}
+		return this;
+	}
+
+	public boolean isMemoryMapped() {
+		return mapChunkSize > 0;
+	}
+
+	/**
+	 * Writes an {@link ILogIndex} next to every text log file, with an entry for
+	 * the first record of every {@code bucketMillis} and every
+	 * {@code everyRecords}th record. 0 disables the respective trigger, both 0
+	 * disable the index. Binary files are not indexed.
+	 */
+	public synchronized IFileHandler setIndexed(long bucketMillis, int everyRecords) throws IOException {
+		if (bucketMillis < 0 || everyRecords < 0)
+			throw new IllegalArgumentException("index intervals must not be negative");
+		this.indexBucketMillis = bucketMillis;
+		this.indexEveryRecords = everyRecords;
+		closeIndex();
+		if (out != null)
+			openIndex(file);
+		return this;
+	}
+
+	public boolean isIndexed() {
+		return indexBucketMillis > 0 || indexEveryRecords > 0;
+	}
+
+	/**
+	 * Sets when records are forced to the storage device. Files are also forced
+	 * before they are rolled or closed unless the mode is
+	 * {@link Durability#PAGE_CACHE}. The periodic force flushes the stream too,
+	 * so flushing every record ({@link #setAutoFlush(boolean)}) is not needed
+	 * with an interval.
+	 *
+	 * @param intervalMillis period of the background force, 0 for none. Required
+	 *                       for {@link Durability#PERIODIC}.
+	 */
+	public synchronized IFileHandler setDurability(Durability durability, long intervalMillis) {
+		if (intervalMillis < 0 || (durability == Durability.PERIODIC && intervalMillis == 0))
+			throw new IllegalArgumentException("invalid sync interval " + intervalMillis);
+		this.durability = durability;
+		this.syncInterval = durability == Durability.PAGE_CACHE ? 0 : intervalMillis;
+		if (out instanceof MappedFileOutputStream)
+			((MappedFileOutputStream) out).setForceOnRemap(durability != Durability.PAGE_CACHE);
+		if (syncTask != null)
+			syncTask.cancel(false);
+		syncTask = syncInterval > 0 && out != null
+				? SYNCER.scheduleWithFixedDelay(this::syncQuietly, syncInterval, syncInterval, TimeUnit.MILLISECONDS)
+				: null;
+		return this;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @param syncLevel records at or above this level wait for a force in
+	 *                  {@link Durability#GROUP_COMMIT} mode, {@link Level#SEVERE}
+	 *                  by default
+	 */
+	public IFileHandler setSyncLevel(Level syncLevel) {
+		this.syncLevel = syncLevel;
+		return this;
+	}
+
+	public Level getSyncLevel() {
+		return syncLevel;
+	}
+
+	/**
+	 * @return number of forces done, excluding those on roll and close
+	 */
+	public long getSyncCount() {
+		synchronized (syncLock) {
+			return syncCount;
+		}
+	}
+
+	/**
+	 * Enables rolling. A value of 0 disables the respective limit.
+	 *
+	 * @param maxBytes       roll once the file would grow past this size
+	 * @param intervalMillis roll once the file is older than this
+	 * @param maxFiles       log files (rolled or not) of this handler kept in
+	 *                       the directory
+	 * @param compress       whether rolled files are gzipped
+	 */
+	public synchronized IFileHandler setRolling(long maxBytes, long intervalMillis, int maxFiles, boolean compress) {
+		this.maxBytes = maxBytes;
+		this.interval = intervalMillis;
+		this.maxFiles = maxFiles;
+		this.compress = compress;
+		this.rollAt = intervalMillis > 0 ? System.currentTimeMillis() + intervalMillis : Long.MAX_VALUE;
+		return this;
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		long seq = append(record);
+		if (seq > 0 && durability == Durability.GROUP_COMMIT
+				&& record.getLevel().intValue() >= syncLevel.intValue()) {
+			try {
+				sync(seq);
+			} catch (IOException ex) {
+				reportError("Could not force " + file, ex, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+	/**
+	 * @return number of records written so far including this one, or -1 if it
+	 *         was not written
+	 */
+	private synchronized long append(LogRecord record) {
+		if (out == null || !isLoggable(record))
+			return -1;
+		LoggingMetrics metrics = this.metrics;
+		if (metrics != null)
+			metrics.recordLevel(record.getLevel());
+		if (getFormatter() instanceof IBinaryLogFormatter)
+			return publishBinary((IBinaryLogFormatter) getFormatter(), record, metrics) ? written : -1;
+		long bytesBefore = totalBytes;
+		boolean fresh;
+		try {
+			if (size > 0 && record.getMillis() >= rollAt)
+				roll();
+			// before the record is formatted, the head resets per-file formatter
+			// state, e.g. the stack trace deduplication of IFileLogger
+			fresh = !headWritten;
+			if (fresh) {
+				write(getFormatter().getHead(this));
+				headWritten = true;
+			}
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.WRITE_FAILURE);
+			return -1;
+		}
+		long start = metrics == null ? 0 : System.nanoTime();
+		String str;
+		try {
+			str = getFormatter().format(record);
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+			return -1;
+		}
+		if (metrics != null) {
+			long formatted = System.nanoTime();
+			metrics.recordFormat(formatted - start);
+			start = formatted;
+		}
+		try {
+			// encoded up front so the roll compares bytes, not chars
+			ByteBuffer bytes = TextEncoder.get(charset).encode(str);
+			if (!fresh && maxBytes > 0 && size + bytes.limit() > maxBytes) {
+				roll();
+				write(getFormatter().getHead(this));
+				headWritten = true;
+				// only a stack trace can refer to the previous file, and the head
+				// write reused the encoder's buffer
+				if (record.getThrown() != null)
+					str = getFormatter().format(record);
+				bytes = TextEncoder.get(charset).encode(str);
+			}
+			if (index != null && index.record(record.getMillis(), size) && autoFlush)
+				index.flush();
+			write(bytes.array(), bytes.limit());
+			written++;
+			if (autoFlush)
+				out.flush();
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.WRITE_FAILURE);
+			return -1;
+		}
+		if (metrics != null)
+			metrics.recordWrite(System.nanoTime() - start, totalBytes - bytesBefore);
+		return written;
+	}
+
+	/**
+	 * Appends {@code length} bytes of already formatted and encoded text, e.g.
+	 * lines received by an {@link ILogCollector}. Rolls and indexes like
+	 * {@link #publish(LogRecord)}, with {@code millis} as the record time.
+	 */
+	public synchronized void publishRaw(long millis, byte[] bytes, int length) {
+		if (out == null)
+			return;
+		try {
+			if (size > 0 && ((maxBytes > 0 && size + length > maxBytes) || millis >= rollAt))
+				roll();
+			if (index != null && index.record(millis, size) && autoFlush)
+				index.flush();
+			write(bytes, length);
+			written++;
+			if (autoFlush)
+				out.flush();
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.WRITE_FAILURE);
+		}
+	}
+
+	private boolean publishBinary(IBinaryLogFormatter formatter, LogRecord record, LoggingMetrics metrics) {
+		long bytesBefore = totalBytes;
+		long start = metrics == null ? 0 : System.nanoTime();
+		long formatNanos = 0;
+		try {
+			if (size > 0 && record.getMillis() >= rollAt)
+				roll();
+			boolean fresh = !headWritten;
+			if (fresh) {
+				write(formatter.getBuffer(), formatter.head());
+				headWritten = true;
+			}
+			long encodeStart = metrics == null ? 0 : System.nanoTime();
+			int length = encode(formatter, record);
+			if (length >= 0 && !fresh && maxBytes > 0 && size + length > maxBytes) {
+				// the record refers to the dictionaries of this file, it is encoded
+				// again after the head of the next one reset them
+				roll();
+				write(formatter.getBuffer(), formatter.head());
+				headWritten = true;
+				length = encode(formatter, record);
+			}
+			if (length < 0)
+				return false;
+			if (metrics != null) {
+				formatNanos = System.nanoTime() - encodeStart;
+				metrics.recordFormat(formatNanos);
+			}
+			write(formatter.getBuffer(), length);
+			written++;
+			if (autoFlush)
+				out.flush();
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.WRITE_FAILURE);
+			return false;
+		}
+		if (metrics != null)
+			metrics.recordWrite(System.nanoTime() - start - formatNanos, totalBytes - bytesBefore);
+		return true;
+	}
+
+	/**
+	 * @return number of bytes in {@link IBinaryLogFormatter#getBuffer()}, or -1
+	 *         if the record could not be encoded
+	 */
+	private int encode(IBinaryLogFormatter formatter, LogRecord record) {
+		try {
+			return formatter.encode(record);
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+			return -1;
+		}
+	}
+
+	/**
+	 * Blocks until the records up to {@code target} are forced. The first
+	 * waiting thread forces everything written so far while later ones wait for
+	 * it, so concurrent callers share one force.
+	 */
+	private void sync(long target) throws IOException {
+		// keeps waiting when interrupted, returning early would make the caller
+		// believe its record is durable
+		boolean interrupted = false;
+		try {
+			while (true) {
+				synchronized (syncLock) {
+					while (syncing && durable < target)
+						try {
+							syncLock.wait();
+						} catch (InterruptedException ex) {
+							interrupted = true;
+						}
+					if (durable >= target)
+						return;
+					syncing = true;
+				}
+				long covered = 0;
+				boolean forced = false;
+				try {
+					FileChannel forcing;
+					synchronized (this) {
+						covered = written;
+						forcing = channel;
+						if (out != null) {
+							out.flush();
+							// only forces the current window, full ones were forced
+							// before the next was mapped (see openStream)
+							if (out instanceof MappedFileOutputStream)
+								((MappedFileOutputStream) out).force();
+							if (index != null)
+								index.flush();
+						}
+					}
+					// outside the handler lock, so writers can go on while the device
+					// catches up; their records are covered by the next force. A
+					// pending interrupt would close the channel
+					if (Thread.interrupted())
+						interrupted = true;
+					if (forcing != null)
+						forcing.force(false);
+					forced = true;
+				} catch (ClosedByInterruptException ex) {
+					interrupted = true;
+					throw ex;
+				} catch (ClosedChannelException ex) {
+					// rolled, reopened or closed in between, each forces the file
+					// before closing it
+					forced = true;
+				} finally {
+					synchronized (syncLock) {
+						syncing = false;
+						if (forced) {
+							durable = Math.max(durable, covered);
+							syncCount++;
+						}
+						syncLock.notifyAll();
+					}
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void syncQuietly() {
+		long target;
+		synchronized (this) {
+			target = written;
+		}
+		try {
+			sync(target);
+		} catch (IOException ex) {
+			reportError("Could not force " + file, ex, ErrorManager.FLUSH_FAILURE);
+		}
+	}
+
+	private void write(byte[] bytes, int length) throws IOException {
+		out.write(bytes, 0, length);
+		size += length;
+		totalBytes += length;
+	}
+
+	private void write(String str) throws IOException {
+		if (str.isEmpty())
+			return;
+		ByteBuffer bytes = TextEncoder.get(charset).encode(str);
+		out.write(bytes.array(), 0, bytes.limit());
+		size += bytes.limit();
+		totalBytes += bytes.limit();
+	}
+
+	private void open(File file) throws IOException {
+		this.file = file;
+		synchronized (created) {
+			created.add(file);
+		}
+		this.out = openStream(file);
+		this.size = file.length();
+		this.headWritten = false;
+		openIndex(file);
+	}
+
+	private void openIndex(File file) throws IOException {
+		if (isIndexed() && !(getFormatter() instanceof IBinaryLogFormatter))
+			index = new ILogIndex.Writer(file, indexBucketMillis, indexEveryRecords);
+	}
+
+	private void closeIndex() throws IOException {
+		if (index == null)
+			return;
+		ILogIndex.Writer closing = index;
+		index = null;
+		closing.close();
+	}
+
+	private OutputStream openStream(File file) throws IOException {
+		if (mapChunkSize > 0) {
+			MappedFileOutputStream mapped = new MappedFileOutputStream(file, mapChunkSize);
+			mapped.setForceOnRemap(durability != Durability.PAGE_CACHE);
+			channel = mapped.getChannel();
+			return mapped;
+		}
+		FileOutputStream stream = new FileOutputStream(file, true);
+		channel = stream.getChannel();
+		return new BufferedOutputStream(stream, 1 << 16);
+	}
+
+	/**
+	 * Forces the open file and everything written to it, before it is closed.
+	 */
+	private void forceOpen() throws IOException {
+		out.flush();
+		if (out instanceof MappedFileOutputStream)
+			((MappedFileOutputStream) out).force();
+		channel.force(false);
+		synchronized (syncLock) {
+			durable = Math.max(durable, written);
+			syncLock.notifyAll();
+		}
+	}
+
+	private void closeFile() throws IOException {
+		try {
+			if (headWritten)
+				write(getFormatter().getTail(this));
+			if (durability != Durability.PAGE_CACHE)
+				forceOpen();
+			out.close();
+		} finally {
+			out = null;
+			channel = null;
+			closeIndex();
+		}
+	}
+
+	private void roll() throws IOException {
+		File rolled = file;
+		closeFile();
+		open(newLogFile(dir));
+		if (interval > 0)
+			rollAt = System.currentTimeMillis() + interval;
+		boolean gzip = compress;
+		int keep = maxFiles;
+		COMPRESSOR.execute(() -> {
+			if (gzip)
+				compress(rolled);
+			if (keep > 0)
+				deleteOldFiles(keep);
+		});
+	}
+
+	private void compress(File rolled) {
+		File tmp = new File(rolled.getPath() + COMPRESSED_EXTENSION + ".tmp");
+		try (InputStream in = new FileInputStream(rolled);
+				OutputStream gz = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+			in.transferTo(gz);
+		} catch (IOException ex) {
+			tmp.delete();
+			reportError("Could not compress " + rolled, ex, ErrorManager.GENERIC_FAILURE);
+			return;
+		}
+		if (tmp.renameTo(new File(rolled.getPath() + COMPRESSED_EXTENSION)))
+			rolled.delete();
+		else
+			tmp.delete();
+	}
+
+	/**
+	 * Deletes the oldest files this handler created, other handlers may share the
+	 * directory.
+	 */
+	private void deleteOldFiles(int keep) {
+		while (true) {
+			File oldest;
+			synchronized (created) {
+				if (created.size() <= keep)
+					return;
+				oldest = created.poll();
+			}
+			// compressed by an earlier roll, the compressor runs in order
+			new File(oldest.getPath() + COMPRESSED_EXTENSION).delete();
+			oldest.delete();
+			ILogIndex.indexFile(oldest).delete();
+		}
+	}
+
+	/**
+	 * @return the log files (rolled or not) in {@code dir}, oldest first, or
+	 *         null if {@code dir} cannot be listed
+	 */
+	static File[] listLogFiles(File dir) {
+		File[] files = dir.listFiles(f -> LOG_FILE_NAME.matcher(f.getName()).matches());
+		if (files != null)
+			Arrays.sort(files, Comparator.comparing((File f) -> f.getName().substring(0, 19))
+					.thenComparingInt(IFileHandler::rollIndex));
+		return files;
+	}
+
+	private static int rollIndex(File f) {
+		String name = f.getName();
+		int end = name.indexOf(LOG_EXTENSION);
+		return end > 19 ? Integer.parseInt(name.substring(20, end)) : 0;
+	}
+
+	@Override
+	public synchronized void setEncoding(String encoding) throws SecurityException, UnsupportedEncodingException {
+		super.setEncoding(encoding);
+		this.charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (out == null)
+			return;
+		try {
+			out.flush();
+			if (index != null)
+				index.flush();
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.FLUSH_FAILURE);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws SecurityException {
+		if (out == null)
+			return;
+		if (syncTask != null) {
+			syncTask.cancel(false);
+			syncTask = null;
+		}
+		try {
+			closeFile();
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+		}
+		out = null;
+	}
+}
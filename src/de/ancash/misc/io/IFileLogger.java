@@ -2,10 +2,9 @@ package de.ancash.misc.io;
 
 import java.io.File;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.logging.FileHandler;
+import java.util.function.Supplier;
 import java.util.logging.Formatter;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -15,9 +14,15 @@ import de.ancash.libs.org.apache.commons.lang3.exception.ExceptionUtils;
 public class IFileLogger {
 
 	private final Logger logger;
-
-	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
-	private static final DateTimeFormatter DATE_FORMATTER_FILE = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+	private final IFileHandler fileHandler;
+	private Handler handler;
+	private LoggingMetrics metrics;
+	private IFlightRecorder recorder;
+	// the stack is only walked for call site rate limiting, otherwise the
+	// record infers its source lazily
+	private volatile boolean callSites;
+	private Thread shutdownHook;
+	private volatile IStackTraceDeduplicator traces = new IStackTraceDeduplicator();
 
 	public IFileLogger(String logger, String dir, boolean useParentHandlers) throws SecurityException, IOException {
 		File fileDir = new File(dir);
@@ -27,29 +32,317 @@ public class IFileLogger {
 			throw new IllegalArgumentException(dir + " is a file not a directory!");
 		this.logger = Logger.getLogger(logger);
 		this.logger.setLevel(Level.ALL);
-		FileHandler fh = new FileHandler(dir + "/" + LocalDateTime.now().format(DATE_FORMATTER_FILE) + ".log");
-		fh.setFormatter(new Formatter() {
+		this.fileHandler = new IFileHandler(IFileHandler.newLogFile(fileDir));
+		fileHandler.setFormatter(new Formatter() {
+
+			private StringBuilder builder = new StringBuilder(256);
 
 			@Override
-			public String format(LogRecord record) {
-				Level level = record.getLevel();
-				Throwable throwable = record.getThrown();
-				String message = record.getMessage();
-				StringBuilder builder = new StringBuilder();
-				builder.append(LocalDateTime.now().format(DATE_FORMATTER) + " - ");
-				builder.append(level.getLocalizedName());
-				builder.append(" - ");
-				builder.append(message);
-				if (throwable != null)
-					builder.append("\n" + ExceptionUtils.getStackTrace(throwable));
-				builder.append("\n");
-				return builder.toString();
+			public synchronized String format(LogRecord record) {
+				builder.setLength(0);
+				appendLine(builder, record.getMillis(), record.getLevel(), record.getMessage(), record.getParameters(),
+						record.getThrown(), traces);
+				String str = builder.toString();
+				if (builder.capacity() > 1 << 16)
+					builder = new StringBuilder(256);
+				return str;
+			}
+
+			/**
+			 * Called once per file before its first record: repeated traces must
+			 * refer to traces in the same file.
+			 */
+			@Override
+			public String getHead(Handler h) {
+				IStackTraceDeduplicator dedup = traces;
+				if (dedup != null)
+					dedup.clear();
+				return "";
 			}
 		});
-		this.logger.addHandler(fh);
+		this.handler = fileHandler;
+		this.logger.addHandler(handler);
 		this.logger.setUseParentHandlers(useParentHandlers);
 	}
 
+	/**
+	 * Appends a record in the text layout of the log files:
+	 * {@code yyyy-MM-dd HH:mm:ss.SSS - LEVEL - message}, followed by the stack
+	 * trace if there is one.
+	 */
+	public static void appendLine(StringBuilder builder, long millis, Level level, String message, Object[] params,
+			String stackTrace) {
+		appendHead(builder, millis, level, message, params);
+		if (stackTrace != null)
+			builder.append('\n').append(stackTrace);
+		builder.append('\n');
+	}
+
+	/**
+	 * Same as {@link #appendLine(StringBuilder, long, Level, String, Object[], String)}
+	 * but renders {@code thrown} straight into the builder, through
+	 * {@code traces} if not null.
+	 */
+	public static void appendLine(StringBuilder builder, long millis, Level level, String message, Object[] params,
+			Throwable thrown, IStackTraceDeduplicator traces) {
+		appendHead(builder, millis, level, message, params);
+		if (thrown != null) {
+			builder.append('\n');
+			if (traces != null)
+				traces.appendTo(builder, thrown);
+			else
+				builder.append(ExceptionUtils.getStackTrace(thrown));
+		}
+		builder.append('\n');
+	}
+
+	private static void appendHead(StringBuilder builder, long millis, Level level, String message, Object[] params) {
+		ClockTextCache.appendDateTime(builder, millis);
+		builder.append(" - ");
+		builder.append(level.getLocalizedName());
+		builder.append(" - ");
+		ParameterizedMessage.appendTo(builder, message, params);
+	}
+
+	/**
+	 * Writes records with an {@link IBinaryLogFormatter} instead of the text
+	 * layout. Must be called before the first record is logged.
+	 */
+	public IFileLogger binary() {
+		fileHandler.setFormatter(new IBinaryLogFormatter());
+		return this;
+	}
+
+	/**
+	 * Writes repeated stack traces as a reference to their first occurrence (the
+	 * default) or always in full. References never point into another file,
+	 * every new file starts over.
+	 *
+	 * @see IStackTraceDeduplicator
+	 */
+	public IFileLogger dedupStackTraces(boolean dedup) {
+		traces = dedup ? new IStackTraceDeduplicator() : null;
+		return this;
+	}
+
+	/**
+	 * @return whether a record of this level would be written or recorded by the
+	 *         flight recorder. Callers can use
+	 *         this to skip building expensive messages.
+	 */
+	public boolean isLoggable(Level level) {
+		IFlightRecorder r = recorder;
+		return logger.isLoggable(level) && ((r != null && r.getLevel().intValue() <= level.intValue())
+				|| handler.getLevel().intValue() <= level.intValue());
+	}
+
+	/**
+	 * Logs the supplied message, the supplier is only called if the level is
+	 * enabled.
+	 */
+	public void log(Level level, Supplier<String> message) {
+		if (!isLoggable(level))
+			return;
+		if (!callSites) {
+			logger.log(level, message);
+			return;
+		}
+		StackWalker.StackFrame caller = LoggerUtils.caller();
+		logger.logp(level, caller == null ? null : caller.getClassName(),
+				caller == null ? null : caller.getMethodName(), message);
+	}
+
+	/**
+	 * Logs a parameterized message ({@code {}} or {@code {0}}), the parameters are
+	 * only rendered if the level is enabled.
+	 */
+	public void log(Level level, String pattern, Object... params) {
+		if (!isLoggable(level))
+			return;
+		if (!callSites) {
+			logger.log(level, pattern, params);
+			return;
+		}
+		StackWalker.StackFrame caller = LoggerUtils.caller();
+		logger.logp(level, caller == null ? null : caller.getClassName(),
+				caller == null ? null : caller.getMethodName(), pattern, params);
+	}
+
+	/**
+	 * Rolls to a new file once the current one is larger than {@code maxBytes}
+	 * or older than {@code intervalMillis} (0 disables a limit), keeping at most
+	 * {@code maxFiles} of its files. Rolled files are gzipped in the background if
+	 * {@code compress} is set.
+	 */
+	public IFileLogger rolling(long maxBytes, long intervalMillis, int maxFiles, boolean compress) {
+		fileHandler.setRolling(maxBytes, intervalMillis, maxFiles, compress);
+		return this;
+	}
+
+	/**
+	 * Writes a sidecar {@link ILogIndex} with an entry every
+	 * {@code bucketMillis} and every {@code everyRecords} records, so
+	 * {@link ILogIndex#read(long, long)} can seek to a time range.
+	 */
+	public IFileLogger indexed(long bucketMillis, int everyRecords) throws IOException {
+		fileHandler.setIndexed(bucketMillis, everyRecords);
+		return this;
+	}
+
+	/**
+	 * Sets when records are forced to disk, see {@link IFileHandler.Durability}.
+	 * With an interval, records are no longer flushed one by one.
+	 */
+	public IFileLogger durability(IFileHandler.Durability durability, long intervalMillis) {
+		fileHandler.setDurability(durability, intervalMillis);
+		if (durability != IFileHandler.Durability.PAGE_CACHE && intervalMillis > 0)
+			fileHandler.setAutoFlush(false);
+		return this;
+	}
+
+	/**
+	 * Appends through a memory-mapped window of {@code chunkSize} bytes instead
+	 * of a buffered stream.
+	 */
+	public IFileLogger memoryMapped(int chunkSize) throws IOException {
+		fileHandler.setMemoryMapped(chunkSize);
+		return this;
+	}
+
+	/**
+	 * Moves file writes to a background thread. Records are queued in a ring
+	 * buffer of the given capacity and written in batches. Queued records are
+	 * written on {@link #close()} or when the JVM exits.
+	 */
+	public synchronized IFileLogger async(int capacity, IAsyncHandler.OverflowPolicy policy) {
+		if (handler != fileHandler)
+			throw new IllegalStateException("async must be enabled before other handler wrappers");
+		fileHandler.setAutoFlush(false);
+		IAsyncHandler async = new IAsyncHandler(fileHandler, capacity, policy);
+		if (metrics != null)
+			metrics.setAsyncHandler(async);
+		logger.addHandler(async);
+		logger.removeHandler(handler);
+		handler = async;
+		// the consumer is a daemon, queued records would be lost on exit
+		shutdownHook = new Thread(this::close, "IFileLogger-flush");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+		return this;
+	}
+
+	/**
+	 * Publishes record counts, bytes written, format and write latencies (and
+	 * queue size when async) as an MBean named {@code name}.
+	 */
+	public synchronized IFileLogger metrics(String name) {
+		if (metrics != null)
+			metrics.unregister();
+		metrics = new LoggingMetrics().register(name);
+		if (handler instanceof IAsyncHandler)
+			metrics.setAsyncHandler((IAsyncHandler) handler);
+		fileHandler.setMetrics(metrics);
+		return this;
+	}
+
+	public LoggingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Keeps the last {@code capacity} bytes of records of every level in memory
+	 * and writes them to the log directory on a SEVERE record or
+	 * {@link #dumpFlightRecorder()}.
+	 */
+	public IFileLogger flightRecorder(int capacity) {
+		return flightRecorder(capacity, Level.ALL);
+	}
+
+	/**
+	 * Same as {@link #flightRecorder(int)} but only records at or above
+	 * {@code level}, so calls below it are not rendered for the recorder.
+	 */
+	public synchronized IFileLogger flightRecorder(int capacity, Level level) {
+		if (recorder != null)
+			logger.removeHandler(recorder);
+		IFlightRecorder r = new IFlightRecorder(fileHandler.getFile().getAbsoluteFile().getParentFile(), capacity);
+		r.setLevel(level);
+		logger.addHandler(r);
+		recorder = r;
+		return this;
+	}
+
+	/**
+	 * @return the dump file
+	 */
+	public synchronized File dumpFlightRecorder() throws IOException {
+		if (recorder == null)
+			throw new IllegalStateException("no flight recorder");
+		return recorder.dump();
+	}
+
+	public IFlightRecorder getFlightRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Collapses identical consecutive records of the same level and thread into
+	 * one record and a {@code Last message repeated N times} line, written once
+	 * a different record arrives or after {@code timeoutMillis}.
+	 */
+	public synchronized IFileLogger collapseRepeats(long timeoutMillis) {
+		IRepeatCollapsingHandler collapsing = new IRepeatCollapsingHandler(handler, timeoutMillis);
+		logger.addHandler(collapsing);
+		logger.removeHandler(handler);
+		handler = collapsing;
+		return this;
+	}
+
+	/**
+	 * Limits similar records per level and {@code scope}, writing a summary of
+	 * the suppressed ones once they pass again.
+	 *
+	 * @see IRateLimitingHandler#tokenBucket(double, int)
+	 * @see IRateLimitingHandler#firstThenSample(int, int, long)
+	 */
+	public synchronized IFileLogger rateLimit(IRateLimitingHandler.Scope scope,
+			Supplier<IRateLimitingHandler.Limit> limits) {
+		IRateLimitingHandler limited = new IRateLimitingHandler(handler, scope, limits);
+		if (scope == IRateLimitingHandler.Scope.CALL_SITE)
+			callSites = true;
+		logger.addHandler(limited);
+		logger.removeHandler(handler);
+		handler = limited;
+		return this;
+	}
+
+	/**
+	 * Writes pending records, closes the file and detaches from the logger.
+	 */
+	public synchronized void close() {
+		logger.removeHandler(handler);
+		handler.close();
+		if (recorder != null)
+			logger.removeHandler(recorder);
+		if (metrics != null)
+			metrics.unregister();
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ex) {
+				// shutting down
+			}
+		}
+		shutdownHook = null;
+	}
+
+	public Handler getHandler() {
+		return handler;
+	}
+
+	public IFileHandler getFileHandler() {
+		return fileHandler;
+	}
+
 	public Logger getLogger() {
 		return logger;
 	}
@@ -0,0 +1,208 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Keeps the most recent records of every level in a fixed-size ring of
+ * off-heap memory, rendered in the text layout of {@link IFileLogger}. Once
+ * the ring is full the oldest records are overwritten. A record at or above
+ * the dump level (SEVERE by default) writes the ring to a
+ * {@code flight-<time>.log} file, at most once per dump interval;
+ * {@link #dump()} does so on demand.
+ * <p>
+ * Only records that reach the handler are captured, so the logger's level
+ * has to let them through.
+ */
+public class IFlightRecorder extends Handler {
+
+	public static final String DUMP_PREFIX = "flight-";
+	public static final long DEFAULT_DUMP_INTERVAL_MILLIS = 10_000;
+
+	private final File dir;
+	private final ByteBuffer ring;
+	private final byte[] header = new byte[4];
+	private StringBuilder builder = new StringBuilder(256);
+	private int head;
+	private int tail;
+	private int used;
+	private int count;
+	private Level dumpLevel = Level.SEVERE;
+	private long dumpInterval = DEFAULT_DUMP_INTERVAL_MILLIS;
+	private long lastDump;
+
+	/**
+	 * @param dir      directory dumps are written to
+	 * @param capacity bytes of the ring, allocated up front
+	 */
+	public IFlightRecorder(File dir, int capacity) {
+		if (capacity < 64)
+			throw new IllegalArgumentException("capacity must be at least 64 bytes");
+		this.dir = dir;
+		this.ring = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * @param dumpLevel      records at or above this level trigger a dump, null
+	 *                       disables automatic dumps
+	 * @param intervalMillis minimum time between two automatic dumps
+	 */
+	public synchronized IFlightRecorder setDumpLevel(Level dumpLevel, long intervalMillis) {
+		this.dumpLevel = dumpLevel;
+		this.dumpInterval = intervalMillis;
+		return this;
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record))
+			return;
+		boolean dump;
+		synchronized (this) {
+			try {
+				builder.setLength(0);
+				IFileLogger.appendLine(builder, record.getMillis(), record.getLevel(), record.getMessage(),
+						record.getParameters(), record.getThrown(), null);
+				ByteBuffer bytes = TextEncoder.get(StandardCharsets.UTF_8).encode(builder);
+				add(bytes.array(), Math.min(bytes.limit(), ring.capacity() - header.length));
+			} catch (Exception ex) {
+				reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+				return;
+			} finally {
+				if (builder.capacity() > 1 << 16)
+					builder = new StringBuilder(256);
+			}
+			long now = System.currentTimeMillis();
+			dump = dumpLevel != null && record.getLevel().intValue() >= dumpLevel.intValue()
+					&& (lastDump == 0 || now - lastDump >= dumpInterval);
+			if (dump)
+				lastDump = now;
+		}
+		if (dump)
+			try {
+				dump();
+			} catch (IOException ex) {
+				reportError("Could not dump flight recorder", ex, ErrorManager.WRITE_FAILURE);
+			}
+	}
+
+	/**
+	 * Writes the recorded lines, oldest first, to a new file in the dump
+	 * directory.
+	 *
+	 * @return the file written
+	 */
+	public File dump() throws IOException {
+		byte[] snapshot = snapshot();
+		String name = DUMP_PREFIX + LocalDateTime.now().format(IFileHandler.FILE_NAME_FORMATTER);
+		File file = new File(dir, name + IFileHandler.LOG_EXTENSION);
+		for (int i = 1; file.exists(); i++)
+			file = new File(dir, name + "-" + i + IFileHandler.LOG_EXTENSION);
+		try (OutputStream out = new FileOutputStream(file)) {
+			writeLines(snapshot, out);
+		}
+		return file;
+	}
+
+	/**
+	 * Writes the recorded lines, oldest first, to {@code out}.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		OutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+		writeLines(snapshot(), buffered);
+		buffered.flush();
+	}
+
+	public synchronized int getRecordCount() {
+		return count;
+	}
+
+	public synchronized int getSize() {
+		return used;
+	}
+
+	public int getCapacity() {
+		return ring.capacity();
+	}
+
+	public synchronized void clear() {
+		head = tail = used = count = 0;
+	}
+
+	private void add(byte[] bytes, int length) {
+		int needed = header.length + length;
+		while (ring.capacity() - used < needed)
+			evict();
+		header[0] = (byte) (length >>> 24);
+		header[1] = (byte) (length >>> 16);
+		header[2] = (byte) (length >>> 8);
+		header[3] = (byte) length;
+		put(header, header.length);
+		put(bytes, length);
+		used += needed;
+		count++;
+	}
+
+	private void evict() {
+		int length = 0;
+		for (int i = 0; i < header.length; i++)
+			length = (length << 8) | (ring.get((head + i) % ring.capacity()) & 0xFF);
+		head = (head + header.length + length) % ring.capacity();
+		used -= header.length + length;
+		count--;
+	}
+
+	private void put(byte[] bytes, int length) {
+		int first = Math.min(length, ring.capacity() - tail);
+		ring.position(tail);
+		ring.put(bytes, 0, first);
+		if (first < length) {
+			ring.position(0);
+			ring.put(bytes, first, length - first);
+		}
+		tail = (tail + length) % ring.capacity();
+	}
+
+	/**
+	 * @return the entries (length headers included) in order
+	 */
+	private synchronized byte[] snapshot() {
+		byte[] copy = new byte[used];
+		int first = Math.min(used, ring.capacity() - head);
+		ring.position(head);
+		ring.get(copy, 0, first);
+		if (first < used) {
+			ring.position(0);
+			ring.get(copy, first, used - first);
+		}
+		return copy;
+	}
+
+	private static void writeLines(byte[] snapshot, OutputStream out) throws IOException {
+		int i = 0;
+		while (i + 4 <= snapshot.length) {
+			int length = ((snapshot[i] & 0xFF) << 24) | ((snapshot[i + 1] & 0xFF) << 16)
+					| ((snapshot[i + 2] & 0xFF) << 8) | (snapshot[i + 3] & 0xFF);
+			out.write(snapshot, i + 4, length);
+			i += 4 + length;
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws SecurityException {
+	}
+}
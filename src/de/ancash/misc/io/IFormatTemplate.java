@@ -0,0 +1,168 @@
+package de.ancash.misc.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+/**
+ * A log format parsed once into literal and placeholder segments. Rendering
+ * walks the segments and appends straight into the caller's builder, so no
+ * intermediate strings are created per line.
+ */
+public final class IFormatTemplate {
+
+	private final String format;
+	private final Segment[] segments;
+
+	private IFormatTemplate(String format, Segment[] segments) {
+		this.format = format;
+		this.segments = segments;
+	}
+
+	/**
+	 * Parses {@code format}. Every {@code $name$} token that is a key of
+	 * {@code placeholders} becomes that segment, everything else is kept as
+	 * literal text.
+	 */
+	public static IFormatTemplate compile(String format, Map<String, Segment> placeholders) {
+		return compile(format, placeholders, Collections.emptyMap());
+	}
+
+	/**
+	 * Like {@link #compile(String, Map)}, additionally a {@code $prefix:arg$}
+	 * token whose {@code $prefix:} is a key of {@code prefixed} becomes the
+	 * segment that function creates for {@code arg}.
+	 */
+	public static IFormatTemplate compile(String format, Map<String, Segment> placeholders,
+			Map<String, Function<String, Segment>> prefixed) {
+		List<Segment> segments = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < format.length()) {
+			char c = format.charAt(i);
+			int end = c == '$' ? format.indexOf('$', i + 1) : -1;
+			Segment placeholder = end == -1 ? null : placeholders.get(format.substring(i, end + 1));
+			if (placeholder == null && end != -1)
+				placeholder = prefixed(format, i, end, prefixed);
+			if (placeholder == null) {
+				literal.append(c);
+				i++;
+				continue;
+			}
+			if (literal.length() > 0) {
+				segments.add(new Literal(literal.toString()));
+				literal.setLength(0);
+			}
+			segments.add(placeholder);
+			i = end + 1;
+		}
+		if (literal.length() > 0)
+			segments.add(new Literal(literal.toString()));
+		return new IFormatTemplate(format, segments.toArray(new Segment[segments.size()]));
+	}
+
+	private static Segment prefixed(String format, int start, int end, Map<String, Function<String, Segment>> prefixed) {
+		int colon = format.indexOf(':', start);
+		if (colon == -1 || colon > end)
+			return null;
+		Function<String, Segment> factory = prefixed.get(format.substring(start, colon + 1));
+		return factory == null ? null : factory.apply(format.substring(colon + 1, end));
+	}
+
+	public void render(StringBuilder builder, Context context) {
+		for (Segment segment : segments)
+			segment.append(builder, context);
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	@Override
+	public String toString() {
+		return format;
+	}
+
+	/**
+	 * A compiled piece of a template.
+	 */
+	@FunctionalInterface
+	public interface Segment {
+
+		public void append(StringBuilder builder, Context context);
+
+	}
+
+	private static final class Literal implements Segment {
+
+		private final String text;
+
+		private Literal(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public void append(StringBuilder builder, Context context) {
+			builder.append(text);
+		}
+	}
+
+	/**
+	 * Mutable state of the line being rendered. The message is passed as a range
+	 * so a line of a multi-line record can be rendered without a substring.
+	 */
+	public static final class Context {
+
+		private Level level;
+		private long millis;
+		private String threadName;
+		private CharSequence message;
+		private int start;
+		private int end;
+
+		public Context set(Level level, long millis, String threadName, CharSequence message) {
+			return set(level, millis, threadName, message, 0, message.length());
+		}
+
+		public Context set(Level level, long millis, String threadName, CharSequence message, int start, int end) {
+			this.level = level;
+			this.millis = millis;
+			this.threadName = threadName;
+			this.message = message;
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public String getThreadName() {
+			return threadName;
+		}
+
+		public CharSequence getMessage() {
+			return message;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+		public void appendMessage(StringBuilder builder) {
+			builder.append(message, start, end);
+		}
+	}
+}
@@ -1,16 +1,17 @@
 package de.ancash.misc.io;
 
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Filter;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
+import de.ancash.misc.io.IFormatTemplate.Context;
+import de.ancash.misc.io.IFormatTemplate.Segment;
 import de.ancash.misc.io.IPrintStream.ConsoleColor;
 
 public class IFormatter extends Formatter {
@@ -25,13 +26,23 @@ public class IFormatter extends Formatter {
 	public static final String MESSAGE = "$s$";
 	public static final String COLOR = "$c$";
 	public static final String RESET = ConsoleColor.RESET;
+	/**
+	 * {@code $ctx:name$} renders the {@link ILogContext} value {@code name}.
+	 */
+	public static final String CONTEXT_PREFIX = "$ctx:";
+
+	private static final ThreadLocal<RenderState> RENDER_STATE = ThreadLocal.withInitial(RenderState::new);
 
 	private final String format;
+	private final Map<String, Segment> placeholders = new LinkedHashMap<>();
+	private final Map<String, Function<String, Segment>> prefixedPlaceholders = new LinkedHashMap<>();
+	private volatile IFormatTemplate template;
+	private final boolean legacyFormatExtra;
 	private final Map<Level, String> levelColors = new HashMap<>();
 	private final boolean formatAfterLineSeperator;
 	private Level fromLevel = Level.INFO;
 	private Level toLevel = Level.SEVERE;
-	private final Set<ILoggerListener> listener = new HashSet<>();
+	private final LogListenerDispatcher listeners = new LogListenerDispatcher();
 
 	public IFormatter(String format) {
 		this(format, true);
@@ -49,47 +60,226 @@ public class IFormatter extends Formatter {
 		levelColors.put(Level.OFF, "");
 		levelColors.put(Level.SEVERE, ConsoleColor.RED_BOLD_BRIGHT);
 		levelColors.put(Level.WARNING, ConsoleColor.YELLOW_BOLD_BRIGHT);
+		placeholders.put(LEVEL, (b, c) -> b.append(c.getLevel()));
+		placeholders.put(FULL_DATE_TIME, (b, c) -> ClockTextCache.appendDateTime(b, c.getMillis()));
+		placeholders.put(PART_DATE_TIME, (b, c) -> ClockTextCache.appendTime(b, c.getMillis()));
+		placeholders.put(THREAD_NAME, (b, c) -> b.append(c.getThreadName()));
+		placeholders.put(COLOR, (b, c) -> {
+			String color = levelColors.get(c.getLevel());
+			if (color != null)
+				b.append(color);
+		});
+		placeholders.put(MESSAGE, (b, c) -> c.appendMessage(b));
+		prefixedPlaceholders.put(CONTEXT_PREFIX, ILogContext::segment);
+		this.template = IFormatTemplate.compile(format, placeholders, prefixedPlaceholders);
+		this.legacyFormatExtra = overridesFormatExtra();
+	}
+
+	/**
+	 * Registers a custom placeholder (e.g. {@code $pid$}) and recompiles the
+	 * template.
+	 */
+	public IFormatter addPlaceholder(String placeholder, Segment segment) {
+		if (placeholder.length() < 3 || placeholder.charAt(0) != '$'
+				|| placeholder.indexOf('$', 1) != placeholder.length() - 1)
+			throw new IllegalArgumentException("placeholder must look like $name$: " + placeholder);
+		synchronized (placeholders) {
+			placeholders.put(placeholder, segment);
+			template = IFormatTemplate.compile(format, placeholders, prefixedPlaceholders);
+		}
+		return this;
+	}
+
+	/**
+	 * Registers a parameterized placeholder: {@code $prefix:arg$} becomes the
+	 * segment {@code factory} creates for {@code arg}. {@code prefix} must look
+	 * like {@code $name:}, see {@link #CONTEXT_PREFIX}.
+	 */
+	public IFormatter addPlaceholderPrefix(String prefix, Function<String, Segment> factory) {
+		if (prefix.length() < 3 || prefix.charAt(0) != '$' || prefix.indexOf(':') != prefix.length() - 1
+				|| prefix.indexOf('$', 1) != -1)
+			throw new IllegalArgumentException("prefix must look like $name: " + prefix);
+		synchronized (placeholders) {
+			prefixedPlaceholders.put(prefix, factory);
+			template = IFormatTemplate.compile(format, placeholders, prefixedPlaceholders);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the placeholder of the {@link ILogContext} value {@code name}
+	 */
+	public static String context(String name) {
+		return CONTEXT_PREFIX + name + "$";
 	}
 
 	public void addListener(ILoggerListener ill) {
-		listener.add(ill);
+		listeners.addListener(ill);
+	}
+
+	public void removeListener(ILoggerListener ill) {
+		listeners.removeListener(ill);
+	}
+
+	public LogListenerDispatcher getListenerDispatcher() {
+		return listeners;
 	}
 
 	public void setLevelColor(Level l, String c) {
 		levelColors.put(l, c == null ? "" : c);
 	}
 
+	/**
+	 * @return whether records of this level pass {@link #getFromLevel()} and
+	 *         {@link #getToLevel()}
+	 */
+	public boolean isLoggable(Level level) {
+		int value = level.intValue();
+		return value >= fromLevel.intValue() && value <= toLevel.intValue();
+	}
+
+	/**
+	 * @return a filter that rejects records before they are formatted, for use
+	 *         with {@link java.util.logging.Handler#setFilter(Filter)}
+	 */
+	public Filter asFilter() {
+		return record -> isLoggable(record.getLevel());
+	}
+
 	@Override
 	public String format(LogRecord record) {
-		if (record.getLevel().intValue() < fromLevel.intValue() || record.getLevel().intValue() > toLevel.intValue())
+		if (!isLoggable(record.getLevel()))
 			return "";
-		if (!formatAfterLineSeperator)
-			return format(record.getMessage(), record.getLevel(), true);
-		StringBuilder builder = new StringBuilder();
-		Arrays.asList(record.getMessage().split(System.lineSeparator())).stream()
-				.map(s -> format(s, record.getLevel(), true)).forEach(builder::append);
-		String str = builder.toString();
-		listener.forEach(ill -> ill.onLog(str));
-		return str;
+		RenderState state = RenderState.acquire();
+		String s;
+		try {
+			CharSequence message = record.getMessage();
+			if (message == null)
+				message = "null";
+			else if (ParameterizedMessage.hasParameters(record.getParameters())) {
+				ParameterizedMessage.appendTo(state.message, record.getMessage(), record.getParameters());
+				message = state.message;
+			}
+			if (!formatAfterLineSeperator)
+				render(state.builder, state.context, record.getLevel(), record.getMillis(), message, 0,
+						message.length(), true);
+			else
+				renderLines(state.builder, state.context, record.getLevel(), record.getMillis(), message);
+			s = state.builder.toString();
+		} finally {
+			state.release();
+		}
+		listeners.dispatch(s);
+		return s;
 	}
 
-	@SuppressWarnings("nls")
 	public String format(String str, Level l, boolean appendLineSeperator) {
+		RenderState state = RenderState.acquire();
+		String s;
+		try {
+			render(state.builder, state.context, l, System.currentTimeMillis(), str, appendLineSeperator);
+			s = state.builder.toString();
+		} finally {
+			state.release();
+		}
+		listeners.dispatch(s);
+		return s;
+	}
+
+	/**
+	 * Like {@link #format(String, Level, boolean)} but appends the line to
+	 * {@code builder} instead of creating a string. Only allocates if listeners
+	 * are registered.
+	 */
+	public void formatTo(StringBuilder builder, CharSequence str, Level l, boolean appendLineSeperator) {
 		if (str == null)
 			str = "null";
-		String s = formatExtra(format.replace(LEVEL, l.toString())
-				.replace(FULL_DATE_TIME, LocalDateTime.now().format(FULL_DATE_FORMATTER))
-				.replace(PART_DATE_TIME, LocalDateTime.now().format(PART_DATE_FORMATTER))
-				.replace(THREAD_NAME, Thread.currentThread().getName()).replace(COLOR, levelColors.get(l)))
-				.replace(MESSAGE, str) + (appendLineSeperator ? System.lineSeparator() : "");
-		listener.forEach(ill -> ill.onLog(s));
-		return s;
+		formatTo(builder, str, 0, str.length(), l, appendLineSeperator);
+	}
+
+	/**
+	 * Like {@link #formatTo(StringBuilder, CharSequence, Level, boolean)} for the
+	 * characters {@code start} to {@code end} of {@code str}.
+	 */
+	public void formatTo(StringBuilder builder, CharSequence str, int start, int end, Level l,
+			boolean appendLineSeperator) {
+		int from = builder.length();
+		RenderState state = RenderState.acquire();
+		try {
+			render(builder, state.context, l, System.currentTimeMillis(), str, start, end, appendLineSeperator);
+		} finally {
+			state.release();
+		}
+		if (listeners.hasListeners())
+			listeners.dispatch(builder.substring(from));
+	}
+
+	/**
+	 * Renders every line of {@code message} as its own formatted line. Walks the
+	 * message once and treats {@code \n}, {@code \r\n} and {@code \r} alike; a
+	 * trailing line break does not produce an extra empty line.
+	 */
+	private void renderLines(StringBuilder builder, Context context, Level l, long millis, CharSequence message) {
+		int length = message.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+			if (c != '\n' && c != '\r')
+				continue;
+			render(builder, context, l, millis, message, start, i, true);
+			if (c == '\r' && i + 1 < length && message.charAt(i + 1) == '\n')
+				i++;
+			start = i + 1;
+		}
+		if (start < length || start == 0)
+			render(builder, context, l, millis, message, start, length, true);
+	}
+
+	private void render(StringBuilder builder, Context context, Level l, long millis, CharSequence str,
+			boolean appendLineSeperator) {
+		if (str == null)
+			str = "null";
+		render(builder, context, l, millis, str, 0, str.length(), appendLineSeperator);
+	}
+
+	private void render(StringBuilder builder, Context context, Level l, long millis, CharSequence str, int start,
+			int end, boolean appendLineSeperator) {
+		String threadName = IAsyncHandler.currentThreadName();
+		if (!legacyFormatExtra) {
+			template.render(builder, context.set(l, millis, threadName, str, start, end));
+		} else {
+			int from = builder.length();
+			template.render(builder, context.set(l, millis, threadName, MESSAGE));
+			String extra = formatExtra(builder.substring(from)).replace(MESSAGE, str.subSequence(start, end));
+			builder.setLength(from);
+			builder.append(extra);
+		}
+		if (appendLineSeperator)
+			builder.append(System.lineSeparator());
 	}
 
+	/**
+	 * @deprecated register a compiled placeholder with
+	 *             {@link #addPlaceholder(String, Segment)} instead. Overriding
+	 *             this method forces every line through an extra string copy.
+	 */
+	@Deprecated
 	public String formatExtra(String format) {
 		return format;
 	}
 
+	private boolean overridesFormatExtra() {
+		try {
+			return getClass().getMethod("formatExtra", String.class).getDeclaringClass() != IFormatter.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public IFormatTemplate getTemplate() {
+		return template;
+	}
+
 	public Level getFromLevel() {
 		return fromLevel;
 	}
@@ -107,4 +297,36 @@ public class IFormatter extends Formatter {
 		this.toLevel = toLevel;
 		return this;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Per-thread builder and context reused across lines. A nested format call
+	 * on the same thread (e.g. from a custom segment) gets a fresh state.
+	 */
+	private static final class RenderState {
+
+		private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+		private final Context context = new Context();
+		private StringBuilder builder = new StringBuilder(256);
+		private StringBuilder message = new StringBuilder(128);
+		private boolean inUse;
+
+		private static RenderState acquire() {
+			RenderState state = RENDER_STATE.get();
+			if (state.inUse)
+				state = new RenderState();
+			state.inUse = true;
+			state.builder.setLength(0);
+			state.message.setLength(0);
+			return state;
+		}
+
+		private void release() {
+			if (builder.capacity() > MAX_RETAINED_CAPACITY)
+				builder = new StringBuilder(256);
+			if (message.capacity() > MAX_RETAINED_CAPACITY)
+				message = new StringBuilder(128);
+			inUse = false;
+		}
+	}
+}
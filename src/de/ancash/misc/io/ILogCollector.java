@@ -0,0 +1,211 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.ErrorManager;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives lines from {@link ISocketLogShipper}s and appends them to rolling
+ * files through a single {@link IFileHandler}, so several processes on a host
+ * share one file and every received frame is one write. Listens on the
+ * loopback address only. Run
+ * {@code java de.ancash.misc.io.ILogCollector <port> <dir> [maxBytes] [maxFiles]}
+ * to start a standalone collector.
+ */
+public class ILogCollector implements Closeable {
+
+	public static final int MAX_FRAME_LENGTH = 64 << 20;
+
+	private final ServerSocket server;
+	private final IFileHandler handler;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final ErrorManager errorManager = new ErrorManager();
+	private volatile boolean closed;
+
+	public ILogCollector(int port, File dir) throws IOException {
+		if (!dir.exists())
+			dir.mkdirs();
+		this.handler = new IFileHandler(IFileHandler.newLogFile(dir));
+		handler.setAutoFlush(false);
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: ILogCollector <port> <dir> [maxBytes] [maxFiles]");
+			System.exit(1);
+		}
+		ILogCollector collector = new ILogCollector(Integer.parseInt(args[0]), new File(args[1]));
+		if (args.length > 2)
+			collector.getFileHandler().setRolling(Long.parseLong(args[2]), 0,
+					args.length > 3 ? Integer.parseInt(args[3]) : 0, true);
+		Runtime.getRuntime().addShutdownHook(new Thread(collector::close, "ILogCollector-shutdown"));
+		collector.start().join();
+	}
+
+	/**
+	 * Starts accepting connections on a new thread.
+	 *
+	 * @return the accepting thread
+	 */
+	public Thread start() {
+		Thread acceptor = new Thread(this::accept, "ILogCollector-" + getPort());
+		acceptor.start();
+		return acceptor;
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the handler writing the received lines, e.g. to set up rolling
+	 */
+	public IFileHandler getFileHandler() {
+		return handler;
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = server.accept();
+				connections.add(socket);
+				Thread reader = new Thread(() -> read(socket), "ILogCollector-" + socket.getPort());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException ex) {
+				if (!closed)
+					errorManager.error("Could not accept connection", ex, ErrorManager.GENERIC_FAILURE);
+			}
+		}
+	}
+
+	private void read(Socket socket) {
+		Inflater inflater = new Inflater();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16))) {
+			for (byte b : ISocketLogShipper.MAGIC)
+				if (in.readByte() != b)
+					throw new IOException("Not a log shipper");
+			int version = in.readByte();
+			if (version != ISocketLogShipper.VERSION)
+				throw new IOException("Unsupported log shipper version " + version);
+			byte[] body = new byte[1 << 14];
+			byte[] raw = new byte[1 << 14];
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException ex) {
+					return;
+				}
+				if (length < 9 || length > MAX_FRAME_LENGTH)
+					throw new IOException("Invalid frame length " + length);
+				int flags = in.readByte();
+				int lines = in.readInt();
+				int rawLength = in.readInt();
+				if (rawLength < 0 || rawLength > MAX_FRAME_LENGTH)
+					throw new IOException("Invalid frame length " + rawLength);
+				int bodyLength = length - 9;
+				if (body.length < bodyLength)
+					body = new byte[bodyLength];
+				in.readFully(body, 0, bodyLength);
+				byte[] payload = body;
+				if ((flags & ISocketLogShipper.FLAG_DEFLATE) != 0) {
+					if (raw.length < rawLength)
+						raw = new byte[rawLength];
+					inflate(inflater, body, bodyLength, raw, rawLength);
+					payload = raw;
+				} else if (rawLength != bodyLength) {
+					// unframe would read past the body or stale bytes of an earlier frame
+					throw new IOException("Invalid frame length " + rawLength + ", body is " + bodyLength);
+				}
+				handler.publishRaw(System.currentTimeMillis(), payload, unframe(payload, rawLength, lines));
+				handler.flush();
+			}
+		} catch (IOException ex) {
+			if (!closed && !(ex instanceof SocketException))
+				errorManager.error("Dropped connection from " + socket.getRemoteSocketAddress(), ex,
+						ErrorManager.GENERIC_FAILURE);
+		} finally {
+			inflater.end();
+			connections.remove(socket);
+		}
+	}
+
+	private static void inflate(Inflater inflater, byte[] body, int bodyLength, byte[] raw, int rawLength)
+			throws IOException {
+		inflater.reset();
+		inflater.setInput(body, 0, bodyLength);
+		try {
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				int r = inflater.inflate(raw, n, rawLength - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += r;
+			}
+			if (n != rawLength)
+				throw new IOException("Truncated compressed frame");
+		} catch (DataFormatException ex) {
+			throw new IOException("Corrupt compressed frame", ex);
+		}
+	}
+
+	/**
+	 * Moves the line bytes of {@code payload} to its start, dropping the length
+	 * prefixes.
+	 *
+	 * @return number of line bytes
+	 */
+	private static int unframe(byte[] payload, int length, int lines) throws IOException {
+		int read = 0;
+		int written = 0;
+		for (int i = 0; i < lines; i++) {
+			if (read + 4 > length)
+				throw new IOException("Truncated frame");
+			int n = ((payload[read] & 0xFF) << 24) | ((payload[read + 1] & 0xFF) << 16)
+					| ((payload[read + 2] & 0xFF) << 8) | (payload[read + 3] & 0xFF);
+			read += 4;
+			if (n < 0 || read + n > length)
+				throw new IOException("Truncated frame");
+			System.arraycopy(payload, read, payload, written, n);
+			read += n;
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * Stops accepting, drops open connections and closes the file.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException ignored) {
+			// closing anyway
+		}
+		for (Socket socket : connections)
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+				// closing anyway
+			}
+		handler.close();
+	}
+}
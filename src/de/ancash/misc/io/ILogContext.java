@@ -0,0 +1,178 @@
+package de.ancash.misc.io;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.ancash.misc.io.IFormatTemplate.Segment;
+
+/**
+ * Per-thread diagnostic context (request id, tenant, ...) that format
+ * templates reference with {@code $ctx:name$}, see
+ * {@link IFormatter#CONTEXT_PREFIX}.
+ * <p>
+ * Every name is registered once as a slot index with {@link #key(String)}.
+ * Values live in a per-thread array indexed by slot, so {@link #put(int, String)}
+ * and {@link #push(int, String)}/{@link #pop()} do not allocate once the arrays
+ * have grown to fit. Records queued by an {@link IAsyncHandler} are rendered
+ * with the context of the thread that logged them.
+ */
+public final class ILogContext {
+
+	private static final Map<String, Integer> KEYS = new ConcurrentHashMap<>();
+	private static final List<String> NAMES = new CopyOnWriteArrayList<>();
+	private static final ThreadLocal<Slots> SLOTS = ThreadLocal.withInitial(Slots::new);
+
+	private ILogContext() {
+	}
+
+	/**
+	 * @return the slot of {@code name}, registering it on first use
+	 */
+	public static int key(String name) {
+		Integer key = KEYS.get(name);
+		if (key != null)
+			return key;
+		synchronized (NAMES) {
+			return KEYS.computeIfAbsent(name, n -> {
+				NAMES.add(n);
+				return NAMES.size() - 1;
+			});
+		}
+	}
+
+	public static String name(int key) {
+		return NAMES.get(key);
+	}
+
+	/**
+	 * Sets the value of {@code key} on the current thread, null removes it.
+	 *
+	 * @return the previous value
+	 */
+	public static String put(int key, String value) {
+		Slots slots = SLOTS.get();
+		String[] values = slots.ensure(key);
+		String previous = values[key];
+		values[key] = value;
+		return previous;
+	}
+
+	public static String put(String name, String value) {
+		return put(key(name), value);
+	}
+
+	public static String get(int key) {
+		Slots slots = SLOTS.get();
+		String[] values = slots.origin != null ? slots.origin : slots.values;
+		return key < values.length ? values[key] : null;
+	}
+
+	public static String get(String name) {
+		Integer key = KEYS.get(name);
+		return key == null ? null : get(key);
+	}
+
+	public static void remove(int key) {
+		put(key, null);
+	}
+
+	/**
+	 * Sets {@code key} until the matching {@link #pop()}, which restores the
+	 * previous value.
+	 */
+	public static void push(int key, String value) {
+		Slots slots = SLOTS.get();
+		slots.pushUndo(key, put(key, value));
+	}
+
+	/**
+	 * Undoes the last {@link #push(int, String)} of the current thread.
+	 */
+	public static void pop() {
+		Slots slots = SLOTS.get();
+		if (slots.depth == 0)
+			throw new IllegalStateException("context stack is empty");
+		slots.depth--;
+		slots.values[slots.undoKeys[slots.depth]] = slots.undoValues[slots.depth];
+		slots.undoValues[slots.depth] = null;
+	}
+
+	/**
+	 * Removes all values and pushes of the current thread, e.g. when a pooled
+	 * worker finishes a request.
+	 */
+	public static void clear() {
+		Slots slots = SLOTS.get();
+		Arrays.fill(slots.values, null);
+		Arrays.fill(slots.undoValues, 0, slots.depth, null);
+		slots.depth = 0;
+	}
+
+	/**
+	 * @return a segment that appends the value of {@code name}, nothing if unset
+	 */
+	public static Segment segment(String name) {
+		int key = key(name);
+		return (builder, context) -> {
+			String value = get(key);
+			if (value != null)
+				builder.append(value);
+		};
+	}
+
+	/**
+	 * Copies the current thread's values into {@code reuse}, or a new array if it
+	 * is too small.
+	 *
+	 * @return the copy, null if the thread has no values
+	 */
+	static String[] snapshot(String[] reuse) {
+		Slots slots = SLOTS.get();
+		String[] values = slots.values;
+		if (values.length == 0)
+			return null;
+		if (reuse == null || reuse.length < values.length)
+			reuse = new String[values.length];
+		System.arraycopy(values, 0, reuse, 0, values.length);
+		Arrays.fill(reuse, values.length, reuse.length, null);
+		return reuse;
+	}
+
+	/**
+	 * Makes {@link #get(int)} on the current thread read {@code values} (a
+	 * {@link #snapshot(String[])} of another thread) until reset with null.
+	 */
+	static void setOrigin(String[] values) {
+		SLOTS.get().origin = values;
+	}
+
+	private static final class Slots {
+
+		private static final String[] EMPTY = new String[0];
+
+		private String[] values = EMPTY;
+		private String[] origin;
+		private int[] undoKeys = new int[8];
+		private String[] undoValues = new String[8];
+		private int depth;
+
+		private String[] ensure(int key) {
+			if (key >= values.length)
+				values = Arrays.copyOf(values, Math.max(key + 1, NAMES.size()));
+			return values;
+		}
+
+		private void pushUndo(int key, String previous) {
+			if (depth == undoKeys.length) {
+				undoKeys = Arrays.copyOf(undoKeys, depth * 2);
+				undoValues = Arrays.copyOf(undoValues, depth * 2);
+			}
+			undoKeys[depth] = key;
+			undoValues[depth] = previous;
+			depth++;
+		}
+	}
+}
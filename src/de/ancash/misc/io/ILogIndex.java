@@ -0,0 +1,241 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Sidecar time index of a text log file written by {@link IFileHandler}, see
+ * {@link IFileHandler#setIndexed(long, int)}. The index is stored next to the
+ * log as {@code <name>.log.idx} and is a sequence of 16 byte entries: the time
+ * of a record and the byte offset it starts at in the (uncompressed) log. An
+ * entry is written for the first record of every time bucket and, optionally,
+ * every Nth record; entry times never decrease.
+ * <p>
+ * {@link #open(File)} loads the index of a log file, {@link #read(long, long)}
+ * then reads only the part of the log that covers a time range. Records are
+ * indexed in the order they were written, so the range can start or end with a
+ * few records just outside of it.
+ */
+public class ILogIndex {
+
+	public static final String INDEX_EXTENSION = ".idx";
+
+	private final File log;
+	private final long[] millis;
+	private final long[] offsets;
+
+	private ILogIndex(File log, long[] millis, long[] offsets) {
+		this.log = log;
+		this.millis = millis;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * @return the index file of {@code log}, rolled and gzipped or not
+	 */
+	public static File indexFile(File log) {
+		String name = log.getName();
+		if (name.endsWith(IFileHandler.COMPRESSED_EXTENSION))
+			name = name.substring(0, name.length() - IFileHandler.COMPRESSED_EXTENSION.length());
+		return new File(log.getAbsoluteFile().getParentFile(), name + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Loads the index of {@code log}. A missing index is treated as empty, so
+	 * reads fall back to the whole file. A torn last entry is ignored.
+	 */
+	public static ILogIndex open(File log) throws IOException {
+		File file = indexFile(log);
+		int n = file.exists() ? (int) Math.min(Integer.MAX_VALUE, file.length() / 16) : 0;
+		long[] millis = new long[n];
+		long[] offsets = new long[n];
+		if (n > 0)
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+				for (int i = 0; i < n; i++) {
+					millis[i] = in.readLong();
+					offsets[i] = in.readLong();
+				}
+			}
+		return new ILogIndex(log, millis, offsets);
+	}
+
+	public File getLog() {
+		return log;
+	}
+
+	public int size() {
+		return millis.length;
+	}
+
+	public long getMillis(int entry) {
+		return millis[entry];
+	}
+
+	public long getOffset(int entry) {
+		return offsets[entry];
+	}
+
+	/**
+	 * @return offset to start reading at for records from {@code from} on
+	 */
+	public long startOffset(long from) {
+		int i = search(from);
+		// last entry not after from
+		int entry = i >= 0 ? i : -i - 2;
+		return entry < 0 ? 0 : offsets[entry];
+	}
+
+	/**
+	 * @return offset to stop reading at for records up to {@code to}, or -1 for
+	 *         the end of the file
+	 */
+	public long endOffset(long to) {
+		int i = search(to);
+		// first entry after to
+		int entry = i >= 0 ? i + 1 : -i - 1;
+		while (i >= 0 && entry < millis.length && millis[entry] == to)
+			entry++;
+		return entry < millis.length ? offsets[entry] : -1;
+	}
+
+	/**
+	 * Opens the part of the log that holds the records between {@code from} and
+	 * {@code to} (inclusive, epoch millis). Gzipped logs are decompressed up to
+	 * the start of the range.
+	 */
+	public InputStream read(long from, long to) throws IOException {
+		long start = startOffset(from);
+		long end = endOffset(to);
+		InputStream in = IBinaryLogDecoder.open(log);
+		try {
+			long skip = start;
+			while (skip > 0) {
+				long n = in.skip(skip);
+				if (n <= 0) {
+					if (in.read() == -1)
+						throw new EOFException("Index points past the end of " + log);
+					n = 1;
+				}
+				skip -= n;
+			}
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+		return end < 0 ? in : new RangeInputStream(in, end - start);
+	}
+
+	private int search(long time) {
+		int i = Arrays.binarySearch(millis, time);
+		// equal times: binarySearch may hit any of them, use the first
+		while (i > 0 && millis[i - 1] == time)
+			i--;
+		return i;
+	}
+
+	/**
+	 * Appends entries to the index of the file an {@link IFileHandler} writes
+	 * to. Called under the handler's lock.
+	 */
+	static final class Writer implements Closeable {
+
+		private final DataOutputStream out;
+		private final long bucketMillis;
+		private final int everyRecords;
+		private long lastBucket = Long.MIN_VALUE;
+		private long lastMillis = Long.MIN_VALUE;
+		private int records;
+
+		Writer(File log, long bucketMillis, int everyRecords) throws IOException {
+			this.out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(indexFile(log), true), 4096));
+			this.bucketMillis = bucketMillis;
+			this.everyRecords = everyRecords;
+		}
+
+		/**
+		 * @return whether an entry was added for the record at {@code offset}
+		 */
+		boolean record(long millis, long offset) throws IOException {
+			long bucket = bucketMillis > 0 ? Math.floorDiv(millis, bucketMillis) : Long.MIN_VALUE;
+			boolean due = lastMillis == Long.MIN_VALUE || bucket > lastBucket
+					|| (everyRecords > 0 && records >= everyRecords);
+			records++;
+			if (!due)
+				return false;
+			lastBucket = Math.max(lastBucket, bucket);
+			lastMillis = Math.max(lastMillis, millis);
+			records = 1;
+			out.writeLong(lastMillis);
+			out.writeLong(offset);
+			return true;
+		}
+
+		void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	private static final class RangeInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		private RangeInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
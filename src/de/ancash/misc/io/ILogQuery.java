@@ -0,0 +1,585 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Searches files written by {@link IFileLogger} for records in the
+ * {@code yyyy-MM-dd HH:mm:ss.SSS - LEVEL - message} layout, filtered by
+ * level, time range, substring and regex. A record includes the lines that
+ * follow it up to the next record, e.g. a stack trace.
+ * <p>
+ * Plain files are split into chunks that are scanned in parallel through
+ * memory-mapped reads; a chunk owns the records that start in it. Gzipped and
+ * binary files are decoded in one task each, which scans them in chunks that
+ * end at a record start. With a time range, files with an
+ * {@link ILogIndex} are only read where the index says the range is.
+ * Level, time and substring are checked on the raw bytes, only records that
+ * pass them are decoded.
+ * <p>
+ * Run {@code java de.ancash.misc.io.ILogQuery <dir or file>... [--level LEVEL]
+ * [--from "yyyy-MM-dd HH:mm:ss"] [--to "yyyy-MM-dd HH:mm:ss"] [--grep text]
+ * [--regex pattern]} to print the matching records.
+ */
+public class ILogQuery {
+
+	public static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+
+	private static final int HEADER_LENGTH = 26;
+	private static final Level[] KNOWN_LEVELS = { Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE,
+			Level.FINER, Level.FINEST, Level.ALL, Level.OFF };
+
+	private Level level;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private String contains;
+	private Pattern pattern;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private Charset charset = Charset.defaultCharset();
+	private ZoneId zone = ZoneId.systemDefault();
+
+	/**
+	 * Only records of at least {@code level}.
+	 */
+	public ILogQuery level(Level level) {
+		this.level = level;
+		return this;
+	}
+
+	/**
+	 * Only records logged at or after {@code millis}.
+	 */
+	public ILogQuery from(long millis) {
+		this.from = millis;
+		return this;
+	}
+
+	/**
+	 * Only records logged at or before {@code millis}.
+	 */
+	public ILogQuery to(long millis) {
+		this.to = millis;
+		return this;
+	}
+
+	/**
+	 * Only records containing {@code text}, stack traces included.
+	 */
+	public ILogQuery contains(String text) {
+		this.contains = text;
+		return this;
+	}
+
+	/**
+	 * Only records in which {@code pattern} finds a match.
+	 */
+	public ILogQuery matches(Pattern pattern) {
+		this.pattern = pattern;
+		return this;
+	}
+
+	public ILogQuery chunkSize(int chunkSize) {
+		if (chunkSize < HEADER_LENGTH)
+			throw new IllegalArgumentException("chunk size too small");
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	public ILogQuery pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * @param charset charset the text files were written in, the platform
+	 *                default like {@link IFileHandler} by default
+	 */
+	public ILogQuery charset(Charset charset) {
+		this.charset = charset;
+		return this;
+	}
+
+	/**
+	 * @param zone zone the timestamps were written in, the system default by
+	 *             default
+	 */
+	public ILogQuery zone(ZoneId zone) {
+		this.zone = zone;
+		return this;
+	}
+
+	public static void main(String[] args) throws IOException {
+		ILogQuery query = new ILogQuery();
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--level":
+				query.level(Level.parse(args[++i]));
+				break;
+			case "--from":
+				query.from(parseTime(query.zone, args[++i]));
+				break;
+			case "--to":
+				query.to(parseTime(query.zone, args[++i]));
+				break;
+			case "--grep":
+				query.contains(args[++i]);
+				break;
+			case "--regex":
+				query.matches(Pattern.compile(args[++i]));
+				break;
+			default:
+				files.add(new File(args[i]));
+				break;
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: ILogQuery <dir or file>... [--level LEVEL] [--from \"yyyy-MM-dd HH:mm:ss\"]"
+					+ " [--to \"yyyy-MM-dd HH:mm:ss\"] [--grep text] [--regex pattern]");
+			System.exit(1);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		for (File file : files)
+			for (Match match : query.search(file))
+				out.append(match.getText()).append('\n');
+		out.flush();
+	}
+
+	private static long parseTime(ZoneId zone, String text) {
+		return LocalDateTime.parse(text.replace(' ', 'T')).atZone(zone).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Searches {@code file}, or every log file in it (oldest first) if it is a
+	 * directory.
+	 *
+	 * @return the matching records in file order
+	 */
+	public List<Match> search(File file) throws IOException {
+		File[] files = file.isDirectory() ? IFileHandler.listLogFiles(file) : new File[] { file };
+		if (files == null)
+			throw new IOException("Cannot list " + file);
+		List<ForkJoinTask<List<Match>>> tasks = new ArrayList<>();
+		for (File f : files)
+			plan(f, tasks);
+		List<Match> matches = new ArrayList<>();
+		try {
+			for (ForkJoinTask<List<Match>> task : tasks)
+				matches.addAll(task.join());
+		} catch (UncheckedIOException ex) {
+			for (ForkJoinTask<List<Match>> task : tasks)
+				task.cancel(false);
+			throw ex.getCause();
+		}
+		return matches;
+	}
+
+	private void plan(File file, List<ForkJoinTask<List<Match>>> tasks) throws IOException {
+		boolean compressed = file.getName().endsWith(IFileHandler.COMPRESSED_EXTENSION);
+		boolean binary;
+		try (InputStream in = IBinaryLogDecoder.open(file)) {
+			binary = IBinaryLogDecoder.isBinary(in.markSupported() ? in : new BufferedInputStream(in));
+		}
+		if (binary) {
+			tasks.add(submit(() -> scanBinary(file)));
+			return;
+		}
+		boolean timed = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+		ILogIndex index = timed ? ILogIndex.open(file) : null;
+		if (compressed) {
+			tasks.add(submit(() -> scanStream(file, index)));
+			return;
+		}
+		long length = file.length();
+		long start = index == null ? 0 : index.startOffset(from);
+		long end = index == null ? -1 : index.endOffset(to);
+		if (end < 0 || end > length)
+			end = length;
+		for (long chunk = start; chunk < end; chunk += chunkSize) {
+			long chunkStart = chunk;
+			long chunkEnd = Math.min(end, chunk + chunkSize);
+			// the first chunk starts at a record boundary if the index placed it
+			boolean aligned = chunk == start;
+			tasks.add(submit(() -> scanMapped(file, chunkStart, chunkEnd, length, aligned)));
+		}
+	}
+
+	private ForkJoinTask<List<Match>> submit(Callable<List<Match>> task) {
+		return pool.submit(ForkJoinTask.adapt(() -> {
+			try {
+				return task.call();
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}));
+	}
+
+	private List<Match> scanMapped(File file, long start, long end, long length, boolean aligned)
+			throws IOException {
+		// map one byte before the chunk to see whether it starts on a new line
+		long base = aligned ? start : start - 1;
+		long mapLength = Math.min(length - base, Integer.MAX_VALUE);
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buf = channel.map(MapMode.READ_ONLY, base, mapLength);
+		}
+		int pos = (int) (start - base);
+		if (!aligned && buf.get(0) != '\n')
+			pos = nextLine(buf, pos);
+		return new Scanner(file, buf, base).scan(pos, (int) Math.min(end - base, mapLength));
+	}
+
+	private List<Match> scanStream(File file, ILogIndex index) throws IOException {
+		try (InputStream in = index == null ? new GZIPInputStream(new FileInputStream(file), 1 << 16)
+				: index.read(from, to)) {
+			return scanStream(file, in, index == null ? 0 : index.startOffset(from));
+		}
+	}
+
+	private List<Match> scanBinary(File file) throws IOException {
+		try (InputStream in = IBinaryLogDecoder.open(file)) {
+			// offsets of binary files refer to the decoded text
+			return scanStream(file, new DecodedStream(new IBinaryLogDecoder(in), charset), 0);
+		}
+	}
+
+	/**
+	 * Scans {@code in} in chunks of {@link #chunkSize(int)} bytes that end where
+	 * a record starts, so only a record larger than a chunk makes the buffer
+	 * grow.
+	 *
+	 * @param base offset of the first byte of {@code in} in the file
+	 */
+	private List<Match> scanStream(File file, InputStream in, long base) throws IOException {
+		List<Match> matches = new ArrayList<>();
+		byte[] bytes = new byte[chunkSize];
+		int length = 0;
+		while (true) {
+			int n = in.read(bytes, length, bytes.length - length);
+			if (n > 0 && (length += n) < bytes.length)
+				continue;
+			boolean eof = n < 0;
+			int cut = eof ? length : new Scanner(file, ByteBuffer.wrap(bytes, 0, length), base).lastHeader();
+			if (cut == 0 && !eof) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				continue;
+			}
+			matches.addAll(new Scanner(file, ByteBuffer.wrap(bytes, 0, cut), base).scan(0, cut));
+			if (eof)
+				return matches;
+			// the record at the cut is scanned with the next chunk
+			System.arraycopy(bytes, cut, bytes, 0, length - cut);
+			length -= cut;
+			base += cut;
+		}
+	}
+
+	private static int nextLine(ByteBuffer buf, int pos) {
+		int limit = buf.limit();
+		while (pos < limit && buf.get(pos) != '\n')
+			pos++;
+		return Math.min(limit, pos + 1);
+	}
+
+	/**
+	 * Scans one buffer. Not thread-safe, every task has its own.
+	 */
+	private final class Scanner {
+
+		private final File file;
+		private final ByteBuffer buf;
+		private final long base;
+		private final int limit;
+		private final byte[] needle;
+		private final List<Match> matches = new ArrayList<>();
+		private long cachedMinute = Long.MIN_VALUE;
+		private long cachedMinuteMillis;
+		private int recordLevel;
+		private long recordMillis;
+
+		private Scanner(File file, ByteBuffer buf, long base) {
+			this.file = file;
+			this.buf = buf;
+			this.base = base;
+			this.limit = buf.limit();
+			this.needle = contains == null ? null : contains.getBytes(charset);
+		}
+
+		/**
+		 * Scans the records starting in {@code [pos, end)}; the last one may
+		 * extend past {@code end}.
+		 */
+		private List<Match> scan(int pos, int end) {
+			while (pos < end) {
+				if (!isHeader(pos)) {
+					pos = nextLine(buf, pos);
+					continue;
+				}
+				int recordEnd = recordEnd(pos);
+				test(pos, recordEnd);
+				pos = recordEnd;
+			}
+			return matches.isEmpty() ? Collections.emptyList() : matches;
+		}
+
+		/**
+		 * @return start of the last record in the buffer, 0 if only one starts
+		 *         in it
+		 */
+		private int lastHeader() {
+			for (int p = limit - 1; p > 0; p--)
+				if (buf.get(p - 1) == '\n' && isHeader(p))
+					return p;
+			return 0;
+		}
+
+		private int recordEnd(int start) {
+			int pos = nextLine(buf, start);
+			while (pos < limit && !isHeader(pos))
+				pos = nextLine(buf, pos);
+			return pos;
+		}
+
+		private void test(int start, int end) {
+			recordMillis = parseMillis(start);
+			if (recordMillis < from || recordMillis > to)
+				return;
+			int levelEnd = parseLevel(start + HEADER_LENGTH, end);
+			if (level != null && recordLevel < level.intValue())
+				return;
+			if (needle != null && indexOf(levelEnd, end) < 0)
+				return;
+			int textEnd = end;
+			while (textEnd > start && (buf.get(textEnd - 1) == '\n' || buf.get(textEnd - 1) == '\r'))
+				textEnd--;
+			byte[] bytes = new byte[textEnd - start];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = buf.get(start + i);
+			String text = new String(bytes, charset);
+			if (pattern != null && !pattern.matcher(text).find())
+				return;
+			matches.add(new Match(file, base + start, recordMillis, recordLevel, text));
+		}
+
+		private boolean isHeader(int p) {
+			if (p + HEADER_LENGTH > limit)
+				return false;
+			for (int i = 0; i < 23; i++) {
+				byte b = buf.get(p + i);
+				switch (i) {
+				case 4:
+				case 7:
+					if (b != '-')
+						return false;
+					break;
+				case 10:
+					if (b != ' ')
+						return false;
+					break;
+				case 13:
+				case 16:
+					if (b != ':')
+						return false;
+					break;
+				case 19:
+					if (b != '.')
+						return false;
+					break;
+				default:
+					if (b < '0' || b > '9')
+						return false;
+				}
+			}
+			return buf.get(p + 23) == ' ' && buf.get(p + 24) == '-' && buf.get(p + 25) == ' ';
+		}
+
+		private long parseMillis(int p) {
+			long minute = digits(p, 4) * 100_000_000L + digits(p + 5, 2) * 1_000_000L + digits(p + 8, 2) * 10_000L
+					+ digits(p + 11, 2) * 100L + digits(p + 14, 2);
+			if (minute != cachedMinute) {
+				cachedMinuteMillis = LocalDateTime
+						.of(digits(p, 4), digits(p + 5, 2), digits(p + 8, 2), digits(p + 11, 2), digits(p + 14, 2))
+						.atZone(zone).toInstant().toEpochMilli();
+				cachedMinute = minute;
+			}
+			return cachedMinuteMillis + digits(p + 17, 2) * 1000L + digits(p + 20, 3);
+		}
+
+		private int digits(int p, int n) {
+			int v = 0;
+			for (int i = 0; i < n; i++)
+				v = v * 10 + buf.get(p + i) - '0';
+			return v;
+		}
+
+		/**
+		 * Sets {@link #recordLevel} from the level name at {@code p}.
+		 *
+		 * @return the position after the level
+		 */
+		private int parseLevel(int p, int end) {
+			int nameEnd = p;
+			while (nameEnd + 2 < end
+					&& !(buf.get(nameEnd) == ' ' && buf.get(nameEnd + 1) == '-' && buf.get(nameEnd + 2) == ' '))
+				nameEnd++;
+			recordLevel = Integer.MAX_VALUE;
+			for (Level known : KNOWN_LEVELS) {
+				String name = known.getLocalizedName();
+				if (name.length() == nameEnd - p && equalsAscii(p, name)) {
+					recordLevel = known.intValue();
+					return nameEnd;
+				}
+			}
+			byte[] bytes = new byte[nameEnd - p];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = buf.get(p + i);
+			try {
+				recordLevel = Level.parse(new String(bytes, charset)).intValue();
+			} catch (IllegalArgumentException ex) {
+				// unknown custom level, never filtered out by level
+			}
+			return nameEnd;
+		}
+
+		private boolean equalsAscii(int p, String s) {
+			for (int i = 0; i < s.length(); i++)
+				if (buf.get(p + i) != s.charAt(i))
+					return false;
+			return true;
+		}
+
+		private int indexOf(int from, int to) {
+			byte first = needle[0];
+			int last = to - needle.length;
+			outer: for (int i = from; i <= last; i++) {
+				if (buf.get(i) != first)
+					continue;
+				for (int j = 1; j < needle.length; j++)
+					if (buf.get(i + j) != needle[j])
+						continue outer;
+				return i;
+			}
+			return needle.length == 0 ? from : -1;
+		}
+	}
+
+	/**
+	 * Text of the records of a binary log, encoded in the query's charset.
+	 */
+	private static final class DecodedStream extends InputStream {
+
+		private final IBinaryLogDecoder decoder;
+		private final Charset charset;
+		private ByteBuffer line;
+
+		private DecodedStream(IBinaryLogDecoder decoder, Charset charset) {
+			this.decoder = decoder;
+			this.charset = charset;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? line.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, line.remaining());
+			line.get(b, off, n);
+			return n;
+		}
+
+		private boolean fill() throws IOException {
+			while (line == null || !line.hasRemaining()) {
+				if (!decoder.next())
+					return false;
+				line = TextEncoder.get(charset).encode(decoder.getLine());
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A matching record.
+	 */
+	public static final class Match {
+
+		private final File file;
+		private final long offset;
+		private final long millis;
+		private final int level;
+		private final String text;
+
+		private Match(File file, long offset, long millis, int level, String text) {
+			this.file = file;
+			this.offset = offset;
+			this.millis = millis;
+			this.level = level;
+			this.text = text;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return byte offset of the record in the (uncompressed) file
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * @return {@link Level#intValue()} of the record's level
+		 */
+		public int getLevel() {
+			return level;
+		}
+
+		/**
+		 * @return the record, including following lines such as a stack trace
+		 */
+		public String getText() {
+			return text;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+}
@@ -1,7 +1,18 @@
 package de.ancash.misc.io;
 
+import java.util.List;
+
 public interface ILoggerListener {
 
 	public void onLog(String str);
 
+	/**
+	 * Called by {@link LogListenerDispatcher} with every record queued since the
+	 * last call. The list is reused and only valid during the call.
+	 */
+	public default void onLog(List<String> batch) {
+		for (String str : batch)
+			onLog(str);
+	}
+
 }
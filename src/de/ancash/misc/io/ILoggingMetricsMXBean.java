@@ -0,0 +1,36 @@
+package de.ancash.misc.io;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link LoggingMetrics}. Latencies are in nanoseconds,
+ * percentiles are the upper bound of the power-of-two bucket they fall into.
+ */
+public interface ILoggingMetricsMXBean {
+
+	public Map<String, Long> getRecordCounts();
+
+	public long getRecordCount();
+
+	/**
+	 * @return bytes written to the sink (characters for console sinks)
+	 */
+	public long getBytesWritten();
+
+	public Map<String, Long> getFormatTimeNanos();
+
+	public Map<String, Long> getWriteTimeNanos();
+
+	/**
+	 * @return records waiting in the async ring buffer, -1 if not async
+	 */
+	public int getQueueSize();
+
+	/**
+	 * @return records dropped by the async ring buffer, -1 if not async
+	 */
+	public long getDroppedCount();
+
+	public void reset();
+
+}
@@ -1,13 +1,77 @@
 package de.ancash.misc.io;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
+/**
+ * Formats everything printed to it with an {@link IFormatter}. Prints are
+ * collected per thread until a line break, so partial prints of one thread
+ * end up on one line with one prefix and never interleave with other threads.
+ * Every completed line is formatted on its own and written with a single
+ * write. An unfinished line is written by {@link #flush()} on the same thread
+ * or once it grows past 8192 characters. Unfinished lines of threads that
+ * ended are written by a background sweep, those of all threads on
+ * {@link #close()} and at shutdown; these get the prefix of the writing
+ * thread.
+ */
 public class IPrintStream extends PrintStream {
 
+	/**
+	 * When a buffered stream hands its buffer to the underlying stream. A full
+	 * buffer, {@link IPrintStream#flush()} and {@link IPrintStream#close()} always
+	 * flush.
+	 */
+	public enum FlushPolicy {
+		/**
+		 * After every write that ends with a line break.
+		 */
+		NEWLINE,
+		/**
+		 * Only when the buffer is full.
+		 */
+		SIZE,
+		/**
+		 * From a background thread at a fixed interval.
+		 */
+		INTERVAL;
+	}
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "IPrintStream-flusher");
+		t.setDaemon(true);
+		return t;
+	});
+
 	private final IFormatter formatter;
 	private final Level l;
+	private final Charset charset = Charset.defaultCharset();
+	private final ThreadLocal<PrintState> lines = ThreadLocal.withInitial(PrintState::new);
+	// states holding an unfinished line
+	private final Set<PrintState> partials = ConcurrentHashMap.newKeySet();
+	private ScheduledFuture<?> sweeper;
+	private volatile LoggingMetrics metrics;
+	private byte[] buffer;
+	private int count;
+	private FlushPolicy policy;
+	private Level flushLevel = Level.SEVERE;
+	private ScheduledFuture<?> flusher;
+	private Thread shutdownHook;
 
 	public IPrintStream(OutputStream arg0, Level l, String format, boolean formatAfterLineSeperator) {
 		super(arg0);
@@ -23,97 +87,509 @@ public class IPrintStream extends PrintStream {
 
 	@Override
 	public void println(Object s) {
+		if (!isLoggable())
+			return;
 		println(s == null ? "null" : s.toString());
 	}
 
 	@Override
 	public void println(String s) {
-		super.println(s);
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(s).append('\n');
+		print(state);
 	}
 
 	@Override
 	public void println() {
-		super.println();
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append('\n');
+		print(state);
+	}
+
+	public IPrintStream buffered(FlushPolicy policy) {
+		return buffered(DEFAULT_BUFFER_SIZE, policy);
+	}
+
+	/**
+	 * Collects output in a buffer of {@code bufferSize} bytes instead of writing
+	 * every print through, see {@link FlushPolicy}.
+	 */
+	public IPrintStream buffered(int bufferSize, FlushPolicy policy) {
+		return buffered(bufferSize, policy, DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param intervalMillis flush interval of {@link FlushPolicy#INTERVAL}
+	 */
+	public synchronized IPrintStream buffered(int bufferSize, FlushPolicy policy, long intervalMillis) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("buffer size must be positive");
+		if (policy == FlushPolicy.INTERVAL && intervalMillis <= 0)
+			throw new IllegalArgumentException("flush interval must be positive");
+		flushBuffer();
+		if (flusher != null) {
+			flusher.cancel(false);
+			flusher = null;
+		}
+		buffer = new byte[bufferSize];
+		this.policy = policy;
+		if (policy == FlushPolicy.INTERVAL)
+			flusher = FLUSHER.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis,
+					TimeUnit.MILLISECONDS);
+		addShutdownHook();
+		return this;
+	}
+
+	/**
+	 * Output of a buffered stream whose level is at least {@code flushLevel} is
+	 * flushed on every write. Defaults to {@link Level#SEVERE}.
+	 */
+	public synchronized IPrintStream setFlushLevel(Level flushLevel) {
+		this.flushLevel = flushLevel;
+		return this;
+	}
+
+	public synchronized boolean isBuffered() {
+		return buffer != null;
+	}
+
+	public LoggingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Collects record counts, bytes written and format and write latencies into
+	 * {@code metrics}, see {@link LoggingMetrics#register(String)}.
+	 */
+	public IPrintStream setMetrics(LoggingMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * @return whether this stream's level passes the formatter's level range.
+	 *         Prints are dropped before any formatting if not.
+	 */
+	public boolean isLoggable() {
+		return formatter.isLoggable(l);
 	}
 
 	@Override
-	public void print(String s) {
-		super.print(formatter.format(s, l, false));
+	public void print(String o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(boolean o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(char o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(char[] o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(double o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(float o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(int o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(long o) {
-		this.print(String.valueOf(o));
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o);
+		print(state);
 	}
 
 	@Override
 	public void print(Object obj) {
+		if (!isLoggable())
+			return;
 		this.print(obj == null ? "null" : obj.toString());
 	}
 
 	@Override
-	public void println(boolean b) {
-		this.println(String.valueOf(b));
+	public void println(boolean o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
+	}
+
+	@Override
+	public void println(char o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
+	}
+
+	@Override
+	public void println(char[] o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
+	}
+
+	@Override
+	public void println(double o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
+	}
+
+	@Override
+	public void println(float o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
 	}
 
 	@Override
-	public void println(char b) {
-		this.println(String.valueOf(b));
+	public void println(int o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
 	}
 
 	@Override
-	public void println(char[] b) {
-		this.println(String.valueOf(b));
+	public void println(long o) {
+		if (!isLoggable())
+			return;
+		PrintState state = acquire();
+		state.pending.append(o).append('\n');
+		print(state);
+	}
+
+	private PrintState acquire() {
+		PrintState state = lines.get();
+		if (state.inUse) {
+			state = new PrintState();
+			state.nested = true;
+		} else {
+			state.lock.lock();
+		}
+		state.inUse = true;
+		return state;
+	}
+
+	/**
+	 * Writes the completed lines of {@code state} and releases it. A nested
+	 * state has no later print to complete its line, so it is written as is.
+	 */
+	private void print(PrintState state) {
+		try {
+			emit(state, state.nested);
+			if (!state.nested)
+				track(state);
+		} finally {
+			state.release();
+		}
+	}
+
+	/**
+	 * Keeps {@code state} in {@link #partials} while it holds an unfinished line.
+	 */
+	private void track(PrintState state) {
+		boolean partial = state.pending.length() > 0;
+		if (partial == state.registered)
+			return;
+		state.registered = partial;
+		if (!partial) {
+			partials.remove(state);
+			return;
+		}
+		partials.add(state);
+		synchronized (this) {
+			if (sweeper == null)
+				sweeper = FLUSHER.scheduleWithFixedDelay(this::sweep, DEFAULT_FLUSH_INTERVAL_MILLIS,
+						DEFAULT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			addShutdownHook();
+		}
+	}
+
+	/**
+	 * Writes the unfinished lines of threads that ended.
+	 */
+	private void sweep() {
+		for (PrintState state : partials) {
+			Thread owner = state.owner.get();
+			if (owner == null || !owner.isAlive())
+				drain(state);
+		}
+	}
+
+	/**
+	 * Writes the unfinished lines of all threads.
+	 */
+	private void drainPartials() {
+		for (PrintState state : partials)
+			drain(state);
+	}
+
+	private void drain(PrintState state) {
+		// a print of this thread is in progress further up the stack
+		if (state.lock.isHeldByCurrentThread())
+			return;
+		state.lock.lock();
+		// formatted with the name of the thread that printed it, not this one
+		Thread owner = state.owner.get();
+		IAsyncHandler.setOriginThreadName(owner != null ? owner.getName() : state.ownerName);
+		try {
+			emit(state, true);
+			state.registered = false;
+			partials.remove(state);
+		} finally {
+			IAsyncHandler.setOriginThreadName(null);
+			state.lock.unlock();
+		}
+	}
+
+	private synchronized void addShutdownHook() {
+		if (shutdownHook != null)
+			return;
+		shutdownHook = new Thread(() -> {
+			drainPartials();
+			flush();
+		}, "IPrintStream-flush");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Formats every completed line collected by the current thread, each on its
+	 * own, and writes them with a single write. Text after the last line break
+	 * stays pending unless {@code partial} is set or it grew past
+	 * {@link PrintState#MAX_PENDING}.
+	 */
+	private void emit(PrintState state, boolean partial) {
+		StringBuilder pending = state.pending;
+		StringBuilder line = state.line;
+		int length = pending.length();
+		int start = 0;
+		int lineCount = 0;
+		LoggingMetrics m = metrics;
+		long begin = m == null ? 0 : System.nanoTime();
+		line.setLength(0);
+		for (int i = state.scanned; i < length; i++) {
+			if (pending.charAt(i) != '\n')
+				continue;
+			int end = i > start && pending.charAt(i - 1) == '\r' ? i - 1 : i;
+			formatter.formatTo(line, pending, start, end, l, true);
+			start = i + 1;
+			lineCount++;
+		}
+		if (start < length && (partial || length - start > PrintState.MAX_PENDING)) {
+			formatter.formatTo(line, pending, start, length, l, false);
+			start = length;
+			lineCount++;
+		}
+		pending.delete(0, start);
+		state.scanned = pending.length();
+		if (lineCount == 0)
+			return;
+		ByteBuffer bytes = TextEncoder.get(charset).encode(line);
+		if (m != null) {
+			long formatted = System.nanoTime();
+			for (int i = 0; i < lineCount; i++)
+				m.recordLevel(l);
+			m.recordFormat(formatted - begin);
+			begin = formatted;
+		}
+		write(bytes.array(), 0, bytes.limit());
+		if (m != null)
+			m.recordWrite(System.nanoTime() - begin, bytes.limit());
 	}
 
 	@Override
-	public void println(double b) {
-		this.println(String.valueOf(b));
+	public void write(int b) {
+		synchronized (this) {
+			if (buffer == null) {
+				super.write(b);
+				return;
+			}
+			if (count == buffer.length)
+				flushBuffer();
+			buffer[count++] = (byte) b;
+			if (mustFlush(b))
+				flushBuffer();
+		}
 	}
 
 	@Override
-	public void println(float b) {
-		this.println(String.valueOf(b));
+	public void write(byte[] b, int off, int len) {
+		synchronized (this) {
+			if (buffer == null) {
+				super.write(b, off, len);
+				return;
+			}
+			if (len == 0)
+				return;
+			if (len > buffer.length - count)
+				flushBuffer();
+			if (len >= buffer.length) {
+				writeOut(b, off, len);
+				return;
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+			if (mustFlush(b[off + len - 1]))
+				flushBuffer();
+		}
 	}
 
+	/**
+	 * Writes the current thread's unfinished line, if any, and flushes.
+	 */
 	@Override
-	public void println(int b) {
-		this.println(String.valueOf(b));
+	public void flush() {
+		PrintState state = acquire();
+		try {
+			emit(state, true);
+			if (!state.nested)
+				track(state);
+		} finally {
+			state.release();
+		}
+		synchronized (this) {
+			flushBuffer();
+			super.flush();
+		}
 	}
 
+	/**
+	 * Writes the unfinished lines of all threads and closes the stream.
+	 */
 	@Override
-	public void println(long b) {
-		this.println(String.valueOf(b));
+	public void close() {
+		drainPartials();
+		synchronized (this) {
+			if (flusher != null)
+				flusher.cancel(false);
+			if (sweeper != null)
+				sweeper.cancel(false);
+			flushBuffer();
+			if (shutdownHook != null)
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException ex) {
+					// shutting down
+				}
+			super.close();
+		}
+	}
+
+	private boolean mustFlush(int last) {
+		return (policy == FlushPolicy.NEWLINE && last == '\n') || l.intValue() >= flushLevel.intValue();
+	}
+
+	private void flushBuffer() {
+		if (count == 0)
+			return;
+		int n = count;
+		count = 0;
+		writeOut(buffer, 0, n);
+	}
+
+	private void writeOut(byte[] b, int off, int len) {
+		try {
+			out.write(b, off, len);
+			out.flush();
+		} catch (InterruptedIOException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ex) {
+			setError();
+		}
+	}
+
+	/**
+	 * Per-thread text not yet written and the buffer its lines are formatted
+	 * into. A nested print on the same thread (e.g. from a listener) gets a
+	 * fresh state. The lock is held by the owning thread while it prints and by
+	 * threads that write its unfinished line.
+	 */
+	private static final class PrintState {
+
+		private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+		private static final int MAX_PENDING = 8192;
+
+		private StringBuilder pending = new StringBuilder(128);
+		private StringBuilder line = new StringBuilder(256);
+		private final ReentrantLock lock = new ReentrantLock();
+		private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+		private final String ownerName = Thread.currentThread().getName();
+		private int scanned;
+		private boolean inUse;
+		private boolean nested;
+		private boolean registered;
+
+		private void release() {
+			if (pending.length() == 0 && pending.capacity() > MAX_RETAINED_CAPACITY)
+				pending = new StringBuilder(128);
+			if (line.capacity() > MAX_RETAINED_CAPACITY)
+				line = new StringBuilder(256);
+			inUse = false;
+			if (!nested)
+				lock.unlock();
+		}
 	}
 
 	public class ConsoleColor {
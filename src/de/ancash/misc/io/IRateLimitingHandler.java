@@ -0,0 +1,259 @@
+package de.ancash.misc.io;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Limits how many similar records reach the delegate. Records are grouped per
+ * level and {@link Scope}, every group gets its own {@link Limit}. Records
+ * over the limit are counted instead of written; the count is written as
+ * {@code Suppressed N similar messages: ...} before the next record of the
+ * group that passes, or once the group has been quiet for the summary delay.
+ */
+public class IRateLimitingHandler extends Handler {
+
+	public enum Scope {
+		/**
+		 * One group per level.
+		 */
+		LEVEL,
+		/**
+		 * One group per level and message (pattern).
+		 */
+		MESSAGE,
+		/**
+		 * One group per level and logging class and method.
+		 */
+		CALL_SITE;
+	}
+
+	/**
+	 * Decides per group whether a record may pass. Called under the group's lock.
+	 */
+	@FunctionalInterface
+	public interface Limit {
+
+		public boolean tryAcquire(long now);
+
+	}
+
+	public static final String SUMMARY_MESSAGE = "Suppressed {0} similar messages: {1}";
+	public static final long DEFAULT_SUMMARY_DELAY_MILLIS = 5000;
+	private static final int MAX_GROUPS = 10_000;
+	// no call site has it, a message equal to it would just share the group
+	private static final String OVERFLOW_KEY = "\0overflow";
+	private static final String OVERFLOW_MESSAGE = "(messages over the group limit)";
+
+	private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "IRateLimitingHandler-sweeper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Handler delegate;
+	private final Scope scope;
+	private final Supplier<Limit> limits;
+	private final long summaryDelay;
+	private final Map<Level, Map<String, Group>> groups = new ConcurrentHashMap<>();
+	private final ScheduledFuture<?> sweep;
+
+	public IRateLimitingHandler(Handler delegate, Scope scope, Supplier<Limit> limits) {
+		this(delegate, scope, limits, DEFAULT_SUMMARY_DELAY_MILLIS);
+	}
+
+	/**
+	 * @param limits       creates the limit of a new group
+	 * @param summaryDelay quiet time after which a pending summary is written
+	 */
+	public IRateLimitingHandler(Handler delegate, Scope scope, Supplier<Limit> limits, long summaryDelay) {
+		this.delegate = delegate;
+		this.scope = scope;
+		this.limits = limits;
+		this.summaryDelay = summaryDelay;
+		long period = Math.max(100, Math.min(1000, summaryDelay));
+		this.sweep = SWEEPER.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Token bucket: {@code burst} records at once, refilled at
+	 * {@code perSecond}.
+	 */
+	public static Supplier<Limit> tokenBucket(double perSecond, int burst) {
+		return () -> new Limit() {
+
+			private double tokens = burst;
+			private long last = System.currentTimeMillis();
+
+			@Override
+			public boolean tryAcquire(long now) {
+				tokens = Math.min(burst, tokens + (now - last) * perSecond / 1000d);
+				last = now;
+				if (tokens < 1)
+					return false;
+				tokens--;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * The first {@code first} records per window pass, after that every
+	 * {@code oneIn}th.
+	 */
+	public static Supplier<Limit> firstThenSample(int first, int oneIn, long windowMillis) {
+		return () -> new Limit() {
+
+			private long windowStart;
+			private boolean started;
+			private long count;
+
+			@Override
+			public boolean tryAcquire(long now) {
+				if (!started || now - windowStart >= windowMillis) {
+					started = true;
+					windowStart = now;
+					count = 0;
+				}
+				count++;
+				return count <= first || (oneIn > 0 && (count - first) % oneIn == 0);
+			}
+		};
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record) || !delegate.isLoggable(record))
+			return;
+		Group group = group(record);
+		long now = System.currentTimeMillis();
+		long suppressed;
+		synchronized (group) {
+			group.lastSeen = now;
+			if (!group.limit.tryAcquire(now)) {
+				group.suppressed++;
+				return;
+			}
+			suppressed = group.suppressed;
+			group.suppressed = 0;
+		}
+		if (suppressed > 0)
+			delegate.publish(summary(record.getLevel(), group.message, suppressed));
+		delegate.publish(record);
+	}
+
+	public long getSuppressedCount() {
+		long n = 0;
+		for (Map<String, Group> byKey : groups.values())
+			for (Group group : byKey.values())
+				synchronized (group) {
+					n += group.suppressed;
+				}
+		return n;
+	}
+
+	private Group group(LogRecord record) {
+		Map<String, Group> byKey = groups.computeIfAbsent(record.getLevel(), l -> new ConcurrentHashMap<>());
+		String key;
+		switch (scope) {
+		case MESSAGE:
+			key = String.valueOf(record.getMessage());
+			break;
+		case CALL_SITE:
+			key = record.getSourceClassName() + "#" + record.getSourceMethodName();
+			break;
+		default:
+			key = "";
+			break;
+		}
+		Group group = byKey.get(key);
+		if (group != null)
+			return group;
+		// past the limit all new keys share one group, so a flood of distinct
+		// messages is still limited
+		if (byKey.size() >= MAX_GROUPS)
+			return byKey.computeIfAbsent(OVERFLOW_KEY, k -> new Group(limits.get(), OVERFLOW_MESSAGE));
+		return byKey.computeIfAbsent(key, k -> new Group(limits.get(), String.valueOf(record.getMessage())));
+	}
+
+	private LogRecord summary(Level level, String message, long suppressed) {
+		LogRecord summary = new LogRecord(level, SUMMARY_MESSAGE);
+		summary.setParameters(new Object[] { suppressed, message });
+		return summary;
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		try {
+			for (Map.Entry<Level, Map<String, Group>> entry : groups.entrySet()) {
+				Iterator<Group> it = entry.getValue().values().iterator();
+				while (it.hasNext()) {
+					Group group = it.next();
+					long suppressed;
+					synchronized (group) {
+						if (now - group.lastSeen < summaryDelay)
+							continue;
+						suppressed = group.suppressed;
+						group.suppressed = 0;
+					}
+					if (suppressed > 0)
+						delegate.publish(summary(entry.getKey(), group.message, suppressed));
+					else if (now - group.lastSeen >= summaryDelay * 10)
+						it.remove();
+				}
+			}
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.GENERIC_FAILURE);
+		}
+	}
+
+	@Override
+	public void flush() {
+		delegate.flush();
+	}
+
+	/**
+	 * Writes pending summaries and closes the delegate.
+	 */
+	@Override
+	public void close() throws SecurityException {
+		sweep.cancel(false);
+		for (Map.Entry<Level, Map<String, Group>> entry : groups.entrySet())
+			for (Group group : entry.getValue().values()) {
+				long suppressed;
+				synchronized (group) {
+					suppressed = group.suppressed;
+					group.suppressed = 0;
+				}
+				if (suppressed > 0)
+					delegate.publish(summary(entry.getKey(), group.message, suppressed));
+			}
+		delegate.close();
+	}
+
+	public Handler getDelegate() {
+		return delegate;
+	}
+
+	private static final class Group {
+
+		private final Limit limit;
+		private final String message;
+		private long suppressed;
+		private long lastSeen;
+
+		private Group(Limit limit, String message) {
+			this.limit = limit;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package de.ancash.misc.io;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Collapses identical consecutive records of the same level and thread, like
+ * syslog. The first record is passed on, identical ones after it are only
+ * counted. The count is written as {@code Last message repeated N times} once
+ * a different record of that level and thread arrives or no repeat came for
+ * the timeout. Records with a throwable are never collapsed.
+ */
+public class IRepeatCollapsingHandler extends Handler {
+
+	public static final String SUMMARY_MESSAGE = "Last message repeated {0} times";
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+	private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "IRepeatCollapsingHandler-sweeper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Handler delegate;
+	private final long timeout;
+	private final Map<Long, Last> last = new ConcurrentHashMap<>();
+	private final ScheduledFuture<?> sweep;
+
+	public IRepeatCollapsingHandler(Handler delegate) {
+		this(delegate, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param timeoutMillis quiet time after which a pending count is written
+	 */
+	public IRepeatCollapsingHandler(Handler delegate, long timeoutMillis) {
+		this.delegate = delegate;
+		this.timeout = timeoutMillis;
+		long period = Math.max(100, Math.min(1000, timeoutMillis));
+		this.sweep = SWEEPER.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record) || !delegate.isLoggable(record))
+			return;
+		Level level = record.getLevel();
+		long key = ((long) record.getThreadID() << 32) | (level.intValue() & 0xFFFFFFFFL);
+		String threadName = IAsyncHandler.currentThreadName();
+		while (true) {
+			Last state = last.computeIfAbsent(key, k -> new Last(level, record.getThreadID()));
+			// the delegate is called under the state's lock so the count is written
+			// before the record that ends the run
+			synchronized (state) {
+				// removed by the sweeper after we got it, counting here would be lost
+				if (state.dead)
+					continue;
+				long now = System.currentTimeMillis();
+				state.lastSeen = now;
+				if (record.getThrown() == null && state.matches(record)) {
+					state.repeats++;
+					return;
+				}
+				publishRepeats(state);
+				if (record.getThrown() == null)
+					state.set(record, threadName);
+				else
+					state.set(null, null);
+				delegate.publish(record);
+				return;
+			}
+		}
+	}
+
+	private void publishRepeats(Last state) {
+		if (state.repeats == 0)
+			return;
+		LogRecord summary = new LogRecord(state.level, SUMMARY_MESSAGE);
+		summary.setParameters(new Object[] { state.repeats });
+		summary.setThreadID(state.threadId);
+		state.repeats = 0;
+		// credited to the thread that logged the repeats, not the sweeper
+		IAsyncHandler.setOriginThreadName(state.threadName);
+		try {
+			delegate.publish(summary);
+		} finally {
+			IAsyncHandler.setOriginThreadName(null);
+		}
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		try {
+			for (Map.Entry<Long, Last> entry : last.entrySet()) {
+				Last state = entry.getValue();
+				synchronized (state) {
+					if (now - state.lastSeen < timeout)
+						continue;
+					if (state.repeats > 0) {
+						publishRepeats(state);
+						state.set(null, null);
+					} else if (now - state.lastSeen >= timeout * 10) {
+						state.dead = true;
+						last.remove(entry.getKey(), state);
+					}
+				}
+			}
+		} catch (Exception ex) {
+			reportError(null, ex, ErrorManager.GENERIC_FAILURE);
+		}
+	}
+
+	@Override
+	public void flush() {
+		delegate.flush();
+	}
+
+	/**
+	 * Writes pending counts and closes the delegate.
+	 */
+	@Override
+	public void close() throws SecurityException {
+		sweep.cancel(false);
+		for (Last state : last.values())
+			synchronized (state) {
+				publishRepeats(state);
+			}
+		delegate.close();
+	}
+
+	public Handler getDelegate() {
+		return delegate;
+	}
+
+	private static final class Last {
+
+		private final Level level;
+		private final int threadId;
+		private String message;
+		private Object[] params;
+		private String threadName;
+		private long repeats;
+		private long lastSeen;
+		private boolean dead;
+
+		private Last(Level level, int threadId) {
+			this.level = level;
+			this.threadId = threadId;
+		}
+
+		private boolean matches(LogRecord record) {
+			String msg = record.getMessage();
+			return message != null && (message == msg || message.equals(msg))
+					&& Arrays.equals(params, record.getParameters());
+		}
+
+		private void set(LogRecord record, String threadName) {
+			message = record == null ? null : record.getMessage();
+			params = record == null ? null : record.getParameters();
+			this.threadName = threadName;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package de.ancash.misc.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.zip.Deflater;
+
+/**
+ * Ships logged lines to an {@link ILogCollector} over a TCP connection, meant
+ * for a collector on the same host. Register it with
+ * {@link IFormatter#addListener(ILoggerListener)}: every batch the
+ * {@link LogListenerDispatcher} delivers is sent as one frame.
+ * <p>
+ * A connection starts with {@link #MAGIC} and {@link #VERSION}. A frame is
+ * {@code int length, byte flags, int lines, int rawLength, payload}, where the
+ * payload is {@code int length, UTF-8 bytes} per line, deflated if
+ * {@link #FLAG_DEFLATE} is set. Lines that cannot be sent are kept in a
+ * bounded backlog and sent after reconnecting, which happens on a background
+ * thread; the oldest lines are dropped once it is full.
+ */
+public class ISocketLogShipper implements ILoggerListener, Closeable {
+
+	public static final byte[] MAGIC = { 'I', 'L', 'S', 'H' };
+	public static final byte VERSION = 1;
+	public static final byte FLAG_DEFLATE = 1;
+
+	public static final long DEFAULT_MAX_BACKLOG_CHARS = 8 << 20;
+	public static final long DEFAULT_RECONNECT_DELAY_MILLIS = 1000;
+	private static final int MAX_FRAME_LINES = 4096;
+	// below the collector's limit, leaving room for a frame that deflate grew
+	private static final int MAX_FRAME_BYTES = ILogCollector.MAX_FRAME_LENGTH - (1 << 20);
+	private static final int MIN_DEFLATE_LENGTH = 512;
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+	private static final ScheduledExecutorService CONNECTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ISocketLogShipper-connect");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final InetSocketAddress address;
+	private final ArrayDeque<String> backlog = new ArrayDeque<>();
+	private final Buffer payload = new Buffer();
+	private final DataOutputStream payloadOut = new DataOutputStream(payload);
+	private final AtomicLong dropped = new AtomicLong();
+	private final ErrorManager errorManager = new ErrorManager();
+	private boolean compress;
+	private Deflater deflater;
+	private byte[] deflated = new byte[0];
+	private long maxBacklogChars = DEFAULT_MAX_BACKLOG_CHARS;
+	private long backlogChars;
+	private long reconnectDelay = DEFAULT_RECONNECT_DELAY_MILLIS;
+	private long nextConnect;
+	private Socket socket;
+	private DataOutputStream out;
+	private boolean closed;
+	private boolean connecting;
+
+	/**
+	 * Ships to a collector on the loopback address.
+	 */
+	public ISocketLogShipper(int port) {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	public ISocketLogShipper(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * @param compress whether frames of at least 512 bytes are deflated
+	 */
+	public synchronized ISocketLogShipper setCompression(boolean compress) {
+		this.compress = compress;
+		if (compress && deflater == null)
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		return this;
+	}
+
+	/**
+	 * @param maxChars characters kept while disconnected before the oldest lines
+	 *                 are dropped
+	 */
+	public synchronized ISocketLogShipper setMaxBacklog(long maxChars) {
+		this.maxBacklogChars = maxChars;
+		return this;
+	}
+
+	public synchronized ISocketLogShipper setReconnectDelay(long millis) {
+		this.reconnectDelay = millis;
+		return this;
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public synchronized int getBacklogSize() {
+		return backlog.size();
+	}
+
+	public synchronized boolean isConnected() {
+		return socket != null;
+	}
+
+	@Override
+	public void onLog(String str) {
+		synchronized (this) {
+			queue(str);
+			send();
+		}
+	}
+
+	@Override
+	public void onLog(List<String> batch) {
+		synchronized (this) {
+			for (String str : batch)
+				queue(str);
+			send();
+		}
+	}
+
+	/**
+	 * Tries to send the backlog, or schedules a reconnect once the delay since
+	 * the last attempt has passed.
+	 */
+	public synchronized void flush() {
+		send();
+	}
+
+	/**
+	 * Sends what is left, connecting on the calling thread if needed, and
+	 * disconnects.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		if (out == null && !backlog.isEmpty()) {
+			Socket s = open();
+			if (s != null)
+				attach(s);
+		}
+		if (out != null)
+			send();
+		closed = true;
+		disconnect();
+		if (deflater != null)
+			deflater.end();
+	}
+
+	private void queue(String str) {
+		if (closed) {
+			dropped.incrementAndGet();
+			return;
+		}
+		backlog.addLast(str);
+		backlogChars += str.length();
+		while (backlogChars > maxBacklogChars && !backlog.isEmpty()) {
+			backlogChars -= backlog.removeFirst().length();
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void send() {
+		while (!backlog.isEmpty()) {
+			if (out == null) {
+				connectLater();
+				return;
+			}
+			try {
+				int lines = encode();
+				if (lines == 0) {
+					// a single line that does not fit into a frame, it would never be sent
+					backlogChars -= backlog.removeFirst().length();
+					dropped.incrementAndGet();
+					errorManager.error("Dropped a line longer than a frame", null, ErrorManager.WRITE_FAILURE);
+					continue;
+				}
+				writeFrame(lines);
+				for (int i = 0; i < lines; i++)
+					backlogChars -= backlog.removeFirst().length();
+			} catch (IOException ex) {
+				errorManager.error("Lost connection to log collector " + address, ex, ErrorManager.WRITE_FAILURE);
+				disconnect();
+				nextConnect = System.currentTimeMillis() + reconnectDelay;
+				connectLater();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Encodes up to {@link #MAX_FRAME_LINES} lines and {@link #MAX_FRAME_BYTES}
+	 * bytes of the backlog into {@link #payload}.
+	 */
+	private int encode() throws IOException {
+		payload.reset();
+		int lines = 0;
+		for (String str : backlog) {
+			ByteBuffer bytes = TextEncoder.get(StandardCharsets.UTF_8).encode(str);
+			if (payload.size() + 4 + bytes.limit() > MAX_FRAME_BYTES)
+				break;
+			payloadOut.writeInt(bytes.limit());
+			payloadOut.write(bytes.array(), 0, bytes.limit());
+			if (++lines == MAX_FRAME_LINES)
+				break;
+		}
+		return lines;
+	}
+
+	private void writeFrame(int lines) throws IOException {
+		int rawLength = payload.size();
+		byte flags = 0;
+		byte[] body;
+		int bodyLength;
+		if (compress && rawLength >= MIN_DEFLATE_LENGTH) {
+			flags = FLAG_DEFLATE;
+			bodyLength = deflate(payload.array(), rawLength);
+			body = deflated;
+		} else {
+			body = payload.array();
+			bodyLength = rawLength;
+		}
+		out.writeInt(1 + 4 + 4 + bodyLength);
+		out.writeByte(flags);
+		out.writeInt(lines);
+		out.writeInt(rawLength);
+		out.write(body, 0, bodyLength);
+		out.flush();
+	}
+
+	private int deflate(byte[] raw, int length) {
+		deflater.reset();
+		deflater.setInput(raw, 0, length);
+		deflater.finish();
+		if (deflated.length < length + 64)
+			deflated = new byte[length + 64];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == deflated.length)
+				deflated = Arrays.copyOf(deflated, deflated.length * 2);
+			n += deflater.deflate(deflated, n, deflated.length - n);
+		}
+		return n;
+	}
+
+	/**
+	 * Connects on {@link #CONNECTOR} once the reconnect delay has passed, so the
+	 * thread delivering lines never waits for the collector.
+	 */
+	private void connectLater() {
+		if (closed || connecting)
+			return;
+		connecting = true;
+		long delay = Math.max(0, nextConnect - System.currentTimeMillis());
+		CONNECTOR.schedule(() -> {
+			Socket s = open();
+			synchronized (this) {
+				connecting = false;
+				if (closed) {
+					closeQuietly(s);
+					return;
+				}
+				if (s == null) {
+					nextConnect = System.currentTimeMillis() + reconnectDelay;
+					// retried while lines are waiting, not only on the next one
+					if (!backlog.isEmpty())
+						connectLater();
+					return;
+				}
+				attach(s);
+				send();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return a connected socket, or null if the collector cannot be reached
+	 */
+	private Socket open() {
+		Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.connect(address, CONNECT_TIMEOUT_MILLIS);
+			return s;
+		} catch (IOException ex) {
+			closeQuietly(s);
+			return null;
+		}
+	}
+
+	private void attach(Socket s) {
+		try {
+			OutputStream stream = new BufferedOutputStream(s.getOutputStream(), 1 << 16);
+			stream.write(MAGIC);
+			stream.write(VERSION);
+			this.socket = s;
+			this.out = new DataOutputStream(stream);
+		} catch (IOException ex) {
+			closeQuietly(s);
+			nextConnect = System.currentTimeMillis() + reconnectDelay;
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		if (s == null)
+			return;
+		try {
+			s.close();
+		} catch (IOException ignored) {
+			// already failed
+		}
+	}
+
+	private void disconnect() {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+			// nothing to do
+		}
+		socket = null;
+		out = null;
+	}
+
+	private static final class Buffer extends ByteArrayOutputStream {
+
+		private Buffer() {
+			super(1 << 14);
+		}
+
+		private byte[] array() {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package de.ancash.misc.io;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes each distinct stack trace once. Throwables are fingerprinted by their
+ * classes and stack frames (including causes, not messages). The first
+ * occurrence is rendered in full, prefixed with {@code [trace #id]}; repeats
+ * are rendered as one line with the throwable's message, the id and the repeat
+ * count. Fingerprints are kept for the most recently seen {@code capacity}
+ * traces, an evicted trace is written in full again with a new id.
+ */
+public class IStackTraceDeduplicator {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	private static final int MAX_CAUSES = 32;
+
+	private final Map<Long, Trace> traces;
+	private final BuilderWriter writer = new BuilderWriter();
+	private final PrintWriter printer = new PrintWriter(writer);
+	private int nextId;
+
+	public IStackTraceDeduplicator() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IStackTraceDeduplicator(int capacity) {
+		this.traces = new LinkedHashMap<Long, Trace>(Math.min(capacity, 1 << 12) * 4 / 3 + 1, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Trace> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Forgets all traces and restarts ids, e.g. when the output moves to a new
+	 * file that the earlier traces are not in.
+	 */
+	public synchronized void clear() {
+		traces.clear();
+		nextId = 0;
+	}
+
+	/**
+	 * Appends the full trace of {@code thrown} or a reference to an earlier one.
+	 */
+	public synchronized void appendTo(StringBuilder builder, Throwable thrown) {
+		long fingerprint = fingerprint(thrown);
+		Trace trace = traces.get(fingerprint);
+		if (trace == null) {
+			trace = new Trace(++nextId);
+			traces.put(fingerprint, trace);
+			builder.append("[trace #").append(trace.id).append("] ");
+			writer.builder = builder;
+			try {
+				thrown.printStackTrace(printer);
+				printer.flush();
+			} finally {
+				writer.builder = null;
+			}
+			return;
+		}
+		trace.repeats++;
+		builder.append(thrown).append(" [same trace as #").append(trace.id).append(", repeat ").append(trace.repeats)
+				.append(']');
+	}
+
+	/**
+	 * @return a hash of the classes and stack frames of {@code thrown} and its
+	 *         causes
+	 */
+	public static long fingerprint(Throwable thrown) {
+		long hash = 0xcbf29ce484222325L;
+		Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Throwable t = thrown; t != null && seen.size() < MAX_CAUSES && seen.add(t); t = t.getCause()) {
+			hash = mix(hash, t.getClass().getName().hashCode());
+			for (StackTraceElement frame : t.getStackTrace()) {
+				hash = mix(hash, frame.getClassName().hashCode());
+				hash = mix(hash, frame.getMethodName().hashCode());
+				hash = mix(hash, frame.getLineNumber());
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		hash ^= value;
+		hash *= 0x100000001b3L;
+		return hash ^ (hash >>> 29);
+	}
+
+	private static final class Trace {
+
+		private final int id;
+		private long repeats;
+
+		private Trace(int id) {
+			this.id = id;
+		}
+	}
+
+	private static final class BuilderWriter extends Writer {
+
+		private StringBuilder builder;
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			builder.append(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			builder.append(str, off, off + len);
+		}
+
+		@Override
+		public void write(int c) {
+			builder.append((char) c);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package de.ancash.misc.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+
+/**
+ * Java serialization with {@link ObjectOutputStream} and
+ * {@link ObjectInputStream}.
+ */
+public class JavaCodec implements Codec {
+
+	public static final JavaCodec INSTANCE = new JavaCodec();
+
+	@Override
+	public byte[] encode(Object obj) throws IOException {
+		try (ByteArrayOutputStream b = new ByteArrayOutputStream()) {
+			try (ObjectOutputStream o = new ObjectOutputStream(b)) {
+				o.writeObject(obj);
+			}
+			return b.toByteArray();
+		}
+	}
+
+	@Override
+	public Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+		try (ByteArrayInputStream b = new ByteArrayInputStream(bytes)) {
+			try (ObjectInputStream o = new ObjectInputStream(b)) {
+				return o.readObject();
+			}
+		}
+	}
+
+	@Override
+	public boolean canDecode(byte[] bytes) {
+		return bytes.length >= 2 && (bytes[0] & 0xFF) == (ObjectStreamConstants.STREAM_MAGIC >>> 8 & 0xFF)
+				&& (bytes[1] & 0xFF) == (ObjectStreamConstants.STREAM_MAGIC & 0xFF);
+	}
+}
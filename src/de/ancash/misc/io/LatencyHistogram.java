@@ -0,0 +1,61 @@
+package de.ancash.misc.io;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with one bucket per power of two.
+ */
+public class LatencyHistogram {
+
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	private final AtomicLongArray buckets = new AtomicLongArray(65);
+
+	public void record(long value) {
+		buckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < buckets.length(); i++)
+			n += buckets.get(i);
+		return n;
+	}
+
+	/**
+	 * @return count, p50, p90, p99, p999 and max
+	 */
+	public Map<String, Long> snapshot() {
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++)
+			total += counts[i] = buckets.get(i);
+		Map<String, Long> result = new LinkedHashMap<>();
+		result.put("count", total);
+		for (int p = 0; p < PERCENTILES.length; p++)
+			result.put(PERCENTILE_NAMES[p], valueAt(counts, total, PERCENTILES[p]));
+		result.put("max", valueAt(counts, total, 1));
+		return result;
+	}
+
+	private static long valueAt(long[] counts, long total, double percentile) {
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : 1L << i;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0);
+	}
+}
@@ -0,0 +1,141 @@
+package de.ancash.misc.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+
+/**
+ * Delivers logged lines to {@link ILoggerListener}s off the logging thread.
+ * Every listener has its own bounded queue; a single dispatcher thread drains
+ * the queues and hands each listener its pending lines as one batch. Lines for
+ * a listener whose queue is full are dropped and counted, so a slow listener
+ * never blocks logging.
+ */
+public class LogListenerDispatcher {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+	private static final int MAX_BATCH_SIZE = 512;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	private final ErrorManager errorManager = new ErrorManager();
+	private final int queueCapacity;
+	private volatile Thread thread;
+	private volatile boolean closed;
+
+	public LogListenerDispatcher() {
+		this(DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public LogListenerDispatcher(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void addListener(ILoggerListener listener) {
+		for (Registration r : registrations)
+			if (r.listener == listener)
+				return;
+		registrations.add(new Registration(listener, queueCapacity));
+		start();
+	}
+
+	public void removeListener(ILoggerListener listener) {
+		registrations.removeIf(r -> r.listener == listener);
+	}
+
+	public boolean hasListeners() {
+		return !registrations.isEmpty();
+	}
+
+	/**
+	 * Queues {@code str} for every listener.
+	 */
+	public void dispatch(String str) {
+		if (registrations.isEmpty() || closed)
+			return;
+		for (Registration r : registrations)
+			if (!r.queue.offer(str))
+				r.dropped.incrementAndGet();
+		if (signalled.compareAndSet(false, true))
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return lines dropped because the listener's queue was full
+	 */
+	public long getDroppedCount(ILoggerListener listener) {
+		for (Registration r : registrations)
+			if (r.listener == listener)
+				return r.dropped.get();
+		return 0;
+	}
+
+	/**
+	 * Stops the dispatcher thread after delivering everything queued so far.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		Thread t = thread;
+		if (t == null)
+			return;
+		LockSupport.unpark(t);
+		t.join(TimeUnit.SECONDS.toMillis(10));
+	}
+
+	private synchronized void start() {
+		if (thread != null)
+			return;
+		Thread t = new Thread(this::run, "LogListenerDispatcher");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	private void run() {
+		while (true) {
+			signalled.set(false);
+			boolean delivered = false;
+			for (Registration r : registrations)
+				delivered |= r.deliver(errorManager);
+			if (delivered)
+				continue;
+			if (closed)
+				return;
+			LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+		}
+	}
+
+	private static final class Registration {
+
+		private final ILoggerListener listener;
+		private final BlockingQueue<String> queue;
+		private final List<String> batch = new ArrayList<>();
+		private final AtomicLong dropped = new AtomicLong();
+
+		private Registration(ILoggerListener listener, int capacity) {
+			this.listener = listener;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+		}
+
+		private boolean deliver(ErrorManager errorManager) {
+			if (queue.drainTo(batch, MAX_BATCH_SIZE) == 0)
+				return false;
+			try {
+				listener.onLog(batch);
+			} catch (RuntimeException ex) {
+				errorManager.error("Listener " + listener + " failed", ex, ErrorManager.GENERIC_FAILURE);
+			} finally {
+				batch.clear();
+			}
+			return true;
+		}
+	}
+}
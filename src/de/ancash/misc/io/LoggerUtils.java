@@ -70,9 +70,25 @@ public class LoggerUtils {
 	public static void setLogAllLevel(String format, boolean formatAfterLineSeperator) {
 		Logger.getGlobal().setLevel(Level.ALL);
 		Handler g = new ConsoleHandler();
-		g.setFormatter(
-				new IFormatter(format, formatAfterLineSeperator).setFromLevel(Level.ALL).setToLevel(Level.CONFIG));
+		IFormatter formatter = new IFormatter(format, formatAfterLineSeperator).setFromLevel(Level.ALL)
+				.setToLevel(Level.CONFIG);
+		g.setFormatter(formatter);
+		g.setFilter(formatter.asFilter());
 		g.setLevel(Level.ALL);
 		Logger.getGlobal().addHandler(g);
 	}
-}
\ No newline at end of file
+
+	private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+	/**
+	 * @return the frame that called into {@link IConsoleLogger} or
+	 *         {@link IFileLogger}, so records get the real call site as source
+	 *         instead of the wrapper method
+	 */
+	static StackWalker.StackFrame caller() {
+		return WALKER.walk(frames -> frames
+				.filter(f -> f.getDeclaringClass() != LoggerUtils.class && f.getDeclaringClass() != IConsoleLogger.class
+						&& f.getDeclaringClass() != IFileLogger.class)
+				.findFirst().orElse(null));
+	}
+}
@@ -0,0 +1,138 @@
+package de.ancash.misc.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one logging sink, published as
+ * {@code de.ancash.misc.io:type=Logging,name=<name>} with
+ * {@link #register(String)}.
+ */
+public class LoggingMetrics implements ILoggingMetricsMXBean {
+
+	public static final String DOMAIN = "de.ancash.misc.io";
+
+	private static final Level[] LEVELS = { Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE,
+			Level.FINER, Level.FINEST };
+
+	private final LongAdder[] records = new LongAdder[LEVELS.length + 1];
+	private final LongAdder bytes = new LongAdder();
+	private final LatencyHistogram formatTime = new LatencyHistogram();
+	private final LatencyHistogram writeTime = new LatencyHistogram();
+	private volatile IAsyncHandler async;
+	private ObjectName name;
+
+	public LoggingMetrics() {
+		for (int i = 0; i < records.length; i++)
+			records[i] = new LongAdder();
+	}
+
+	public synchronized LoggingMetrics register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=Logging,name=" + ObjectName.quote(name));
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			this.name = objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register logging metrics " + name, e);
+		}
+		return this;
+	}
+
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// already gone
+		}
+		name = null;
+	}
+
+	public void setAsyncHandler(IAsyncHandler async) {
+		this.async = async;
+	}
+
+	public void recordLevel(Level level) {
+		records[index(level)].increment();
+	}
+
+	public void recordFormat(long nanos) {
+		formatTime.record(nanos);
+	}
+
+	public void recordWrite(long nanos, long byteCount) {
+		writeTime.record(nanos);
+		bytes.add(byteCount);
+	}
+
+	private static int index(Level level) {
+		for (int i = 0; i < LEVELS.length; i++)
+			if (LEVELS[i] == level)
+				return i;
+		return LEVELS.length;
+	}
+
+	@Override
+	public Map<String, Long> getRecordCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (int i = 0; i < LEVELS.length; i++)
+			counts.put(LEVELS[i].getName(), records[i].sum());
+		counts.put("OTHER", records[LEVELS.length].sum());
+		return counts;
+	}
+
+	@Override
+	public long getRecordCount() {
+		long n = 0;
+		for (LongAdder adder : records)
+			n += adder.sum();
+		return n;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytes.sum();
+	}
+
+	@Override
+	public Map<String, Long> getFormatTimeNanos() {
+		return formatTime.snapshot();
+	}
+
+	@Override
+	public Map<String, Long> getWriteTimeNanos() {
+		return writeTime.snapshot();
+	}
+
+	@Override
+	public int getQueueSize() {
+		IAsyncHandler a = async;
+		return a == null ? -1 : a.getQueueSize();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		IAsyncHandler a = async;
+		return a == null ? -1 : a.getDroppedCount();
+	}
+
+	@Override
+	public void reset() {
+		for (LongAdder adder : records)
+			adder.reset();
+		bytes.reset();
+		formatTime.reset();
+		writeTime.reset();
+	}
+}
@@ -0,0 +1,112 @@
+package de.ancash.misc.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends to a file through a {@link MappedByteBuffer} window. Writes are
+ * memory copies; once the window is full the next chunk of the file is mapped.
+ * Mapping grows the file ahead of the written data, {@link #close()} truncates
+ * it to the real length. After a crash the file may end with zero bytes.
+ */
+public class MappedFileOutputStream extends OutputStream {
+
+	private final FileChannel channel;
+	private final int chunkSize;
+	private MappedByteBuffer window;
+	private long position;
+	private volatile boolean forceOnRemap;
+
+	public MappedFileOutputStream(File file, int chunkSize) throws IOException {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunk size must be positive");
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.chunkSize = chunkSize;
+		this.position = channel.size();
+		map();
+	}
+
+	/**
+	 * @param forceOnRemap whether a full window is forced before the next one is
+	 *                     mapped, so that {@link #force()} covers everything
+	 *                     written
+	 */
+	public MappedFileOutputStream setForceOnRemap(boolean forceOnRemap) {
+		this.forceOnRemap = forceOnRemap;
+		return this;
+	}
+
+	private void map() throws IOException {
+		// a replaced window is not unmapped until it is collected, and
+		// FileChannel.force is not specified to cover mapped writes
+		if (window != null && forceOnRemap)
+			window.force();
+		window = channel.map(MapMode.READ_WRITE, position, chunkSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (!window.hasRemaining())
+			map();
+		window.put((byte) b);
+		position++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			if (!window.hasRemaining())
+				map();
+			int n = Math.min(len, window.remaining());
+			window.put(b, off, n);
+			off += n;
+			len -= n;
+			position += n;
+		}
+	}
+
+	/**
+	 * @return bytes in the file, not counting the mapped but unwritten tail
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Forces the current window to the storage device. Earlier windows are only
+	 * covered with {@link #setForceOnRemap(boolean)}.
+	 */
+	public void force() throws IOException {
+		ensureOpen();
+		window.force();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (window == null)
+			throw new IOException("closed");
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (window == null)
+			return;
+		window = null;
+		try {
+			channel.truncate(position);
+		} finally {
+			channel.close();
+		}
+	}
+}
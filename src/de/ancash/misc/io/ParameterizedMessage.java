@@ -0,0 +1,67 @@
+package de.ancash.misc.io;
+
+/**
+ * Renders log message parameters straight into a builder. {@code {0}},
+ * {@code {1}}, ... refer to a parameter by index, {@code {}} to the next one.
+ * Unlike {@link java.text.MessageFormat} nothing is parsed or allocated up
+ * front, so parameters of records that are filtered out are never rendered.
+ */
+public final class ParameterizedMessage {
+
+	private ParameterizedMessage() {
+	}
+
+	public static void appendTo(StringBuilder builder, String pattern, Object[] params) {
+		if (pattern == null) {
+			builder.append("null");
+			return;
+		}
+		if (params == null || params.length == 0) {
+			builder.append(pattern);
+			return;
+		}
+		int next = 0;
+		int literalStart = 0;
+		int length = pattern.length();
+		for (int i = 0; i < length; i++) {
+			if (pattern.charAt(i) != '{')
+				continue;
+			int close = i + 1;
+			int index = 0;
+			while (close < length && Character.isDigit(pattern.charAt(close)) && close - i <= 3)
+				index = index * 10 + pattern.charAt(close++) - '0';
+			if (close >= length || pattern.charAt(close) != '}')
+				continue;
+			if (close == i + 1)
+				index = next++;
+			if (index >= params.length)
+				continue;
+			builder.append(pattern, literalStart, i);
+			appendParameter(builder, params[index]);
+			literalStart = close + 1;
+			i = close;
+		}
+		builder.append(pattern, literalStart, length);
+	}
+
+	public static String format(String pattern, Object... params) {
+		StringBuilder builder = new StringBuilder();
+		appendTo(builder, pattern, params);
+		return builder.toString();
+	}
+
+	public static boolean hasParameters(Object[] params) {
+		return params != null && params.length > 0;
+	}
+
+	private static void appendParameter(StringBuilder builder, Object param) {
+		if (param instanceof CharSequence)
+			builder.append((CharSequence) param);
+		else if (param instanceof Integer)
+			builder.append(((Integer) param).intValue());
+		else if (param instanceof Long)
+			builder.append(((Long) param).longValue());
+		else
+			builder.append(param);
+	}
+}
@@ -1,21 +1,19 @@
 package de.ancash.misc.io;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class SerializationUtils {
 
@@ -63,7 +61,10 @@ public class SerializationUtils {
 //	}
 
 //	static FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
-	private static final Set<ClassLoader> clazzLoader = new HashSet<>();
+	/**
+	 * Registered loaders in the order they are tried.
+	 */
+	private static final CopyOnWriteArrayList<ClassLoader> clazzLoader = new CopyOnWriteArrayList<>();
 
 //	static {
 //		clazzLoader.add(ClassLoader.getSystemClassLoader());
@@ -89,28 +90,95 @@ public class SerializationUtils {
 //		});
 //	}
 
-	private static final ConcurrentHashMap<String, Class<?>> clazzRegistry = new ConcurrentHashMap<String, Class<?>>();
+	private static final int MAX_MISSES = 4096;
 
+	// guarded by misses
+	private static long loaderGeneration;
+	private static final ConcurrentHashMap<String, Resolved> clazzRegistry = new ConcurrentHashMap<>();
+	/**
+	 * Names no registered loader could resolve, most recently asked for last.
+	 * Cleared when a loader is added.
+	 */
+	private static final Map<String, Boolean> misses = new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_MISSES;
+		}
+	};
+
+	/**
+	 * Resolves {@code clName} with the registered class loaders in the order they
+	 * were added, without initializing the class. Hits and misses are cached.
+	 *
+	 * @return the class, or null if no loader knows it
+	 */
 	public static Class<?> getClazz(String clName) {
-		if (clazzRegistry.containsKey(clName))
-			return clazzRegistry.get(clName);
+		Resolved resolved = clazzRegistry.get(clName);
+		if (resolved != null)
+			return resolved.clazz;
+		long generation;
+		synchronized (misses) {
+			if (misses.get(clName) != null)
+				return null;
+			generation = loaderGeneration;
+		}
 		for (ClassLoader cl : clazzLoader) {
-			Class<?> clazz;
 			try {
-				clazz = Class.forName(clName, true, cl);
-			} catch (ClassNotFoundException e) {
-				continue;
-			}
-			if (clazz != null) {
-				clazzRegistry.put(clName, clazz);
+				Class<?> clazz = Class.forName(clName, false, cl);
+				resolved = new Resolved(clazz, cl);
+				clazzRegistry.put(clName, resolved);
+				// removed meanwhile, removeClazzLoader may have missed the entry
+				if (!clazzLoader.contains(cl))
+					clazzRegistry.remove(clName, resolved);
 				return clazz;
+			} catch (ClassNotFoundException | LinkageError e) {
+				continue;
 			}
 		}
+		synchronized (misses) {
+			// a loader added during the lookup might know it
+			if (generation == loaderGeneration)
+				misses.put(clName, Boolean.TRUE);
+		}
 		return null;
 	}
 
+	/**
+	 * Adds {@code cl} after the already registered loaders, unless it is
+	 * registered already.
+	 */
 	public static void addClazzLoader(ClassLoader cl) {
-		clazzLoader.add(cl);
+		if (clazzLoader.addIfAbsent(cl))
+			synchronized (misses) {
+				misses.clear();
+				loaderGeneration++;
+			}
+	}
+
+	/**
+	 * Removes {@code cl} and forgets the classes resolved through or defined by
+	 * it, so an unloaded plugin's classes can be collected.
+	 *
+	 * @return whether {@code cl} was registered
+	 */
+	public static boolean removeClazzLoader(ClassLoader cl) {
+		boolean removed = clazzLoader.remove(cl);
+		clazzRegistry.values().removeIf(r -> r.loader == cl || r.clazz.getClassLoader() == cl);
+		return removed;
+	}
+
+	private static final class Resolved {
+
+		private final Class<?> clazz;
+		private final ClassLoader loader;
+
+		private Resolved(Class<?> clazz, ClassLoader loader) {
+			this.clazz = clazz;
+			this.loader = loader;
+		}
 	}
 
 //	public static Object deserializeFST(byte[] bytes) {
@@ -121,19 +189,15 @@ public class SerializationUtils {
 //		return conf.asByteArray(o);
 //	}
 
+	/**
+	 * Reads Java serialized bytes in one pass, resolving every class with all
+	 * registered class loaders (see {@link #getClazz(String)}).
+	 */
 	public static Serializable deserializeWithClassLoaders(byte[] bytes) throws IOException, ClassNotFoundException {
-		ByteArrayInputStream b = new ByteArrayInputStream(bytes);
-		Exception e = null;
-		for (ClassLoader cl : clazzLoader) {
-			try (ClassLoaderAwareObjectInputStream classLoaderAwareOIS = new ClassLoaderAwareObjectInputStream(b, cl)) {
-				Serializable s = (Serializable) classLoaderAwareOIS.readObject();
-				return s;
-			} catch (Exception ex) {
-				e = ex;
-				b.reset();
-			}
+		try (ClassLoaderAwareObjectInputStream in = new ClassLoaderAwareObjectInputStream(
+				new ByteArrayInputStream(bytes))) {
+			return (Serializable) in.readObject();
 		}
-		throw new ClassNotFoundException(e.getLocalizedMessage(), e);
 	}
 
 	@SuppressWarnings("nls")
@@ -168,8 +232,20 @@ public class SerializationUtils {
 		}
 
 		/**
-		 * Overridden version that uses the parameterized {@code ClassLoader} or the
-		 * {@code ClassLoader} of the current {@code Thread} to resolve the class.
+		 * Resolves classes with the registered class loaders and the
+		 * {@code ClassLoader} of the current {@code Thread} only.
+		 * 
+		 * @param in The {@code InputStream}.
+		 * @throws IOException if an I/O error occurs while reading stream header.
+		 */
+		public ClassLoaderAwareObjectInputStream(final InputStream in) throws IOException {
+			this(in, null);
+		}
+
+		/**
+		 * Overridden version that tries the registered class loaders, then the
+		 * parameterized {@code ClassLoader} and then the {@code ClassLoader} of the
+		 * current {@code Thread} to resolve the class.
 		 * 
 		 * @param desc An instance of class {@code ObjectStreamClass}.
 		 * @return A {@code Class} object corresponding to {@code desc}.
@@ -180,14 +256,16 @@ public class SerializationUtils {
 		@Override
 		protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
 			final String name = desc.getName();
+			Class<?> clazz = getClazz(name);
+			if (clazz != null)
+				return clazz;
 			try {
-				Class<?> clazz = getClazz(name);
-				if (clazz != null)
-					return clazz;
-				return Class.forName(name, true, classLoader);
+				if (classLoader == null)
+					throw new ClassNotFoundException(name);
+				return Class.forName(name, false, classLoader);
 			} catch (final ClassNotFoundException ex) {
 				try {
-					return Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+					return Class.forName(name, false, Thread.currentThread().getContextClassLoader());
 				} catch (final ClassNotFoundException cnfe) {
 					final Class<?> cls = primitiveTypes.get(name);
 					if (cls != null) {
@@ -200,20 +278,31 @@ public class SerializationUtils {
 
 	}
 
+	private static final Codec binaryCodec = new BinaryCodec();
+	private static volatile Codec defaultCodec = JavaCodec.INSTANCE;
+
+	/**
+	 * Sets the codec {@link #serializeToBytes(Object)} uses, Java serialization
+	 * ({@link JavaCodec}) by default. {@link #deserializeFromBytes(byte[])} reads
+	 * the output of this codec, Java serialization and {@link BinaryCodec}
+	 * without registrations regardless.
+	 */
+	public static void setDefaultCodec(Codec codec) {
+		defaultCodec = codec;
+	}
+
+	public static Codec getDefaultCodec() {
+		return defaultCodec;
+	}
+
 	public static byte[] serializeToBytes(Object obj) throws IOException {
-		try (ByteArrayOutputStream b = new ByteArrayOutputStream()) {
-			try (ObjectOutputStream o = new ObjectOutputStream(b)) {
-				o.writeObject(obj);
-			}
-			return b.toByteArray();
-		}
+		return defaultCodec.encode(obj);
 	}
 
 	public static Object deserializeFromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-		try (ByteArrayInputStream b = new ByteArrayInputStream(bytes)) {
-			try (ObjectInputStream o = new ObjectInputStream(b)) {
-				return o.readObject();
-			}
-		}
+		Codec codec = defaultCodec;
+		if (!codec.canDecode(bytes))
+			codec = binaryCodec.canDecode(bytes) ? binaryCodec : JavaCodec.INSTANCE;
+		return codec.decode(bytes);
 	}
 }
@@ -0,0 +1,102 @@
+package de.ancash.misc.io;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes character sequences with a reused {@link CharsetEncoder} into a
+ * reused {@link ByteBuffer}. Instances are not thread-safe, use
+ * {@link #get(Charset)} for the calling thread's instance.
+ */
+public final class TextEncoder {
+
+	private static final int CHUNK = 1024;
+	private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+	private static final ThreadLocal<TextEncoder> CURRENT = new ThreadLocal<>();
+
+	private final Charset charset;
+	private final CharsetEncoder encoder;
+	private final char[] chars = new char[CHUNK];
+	private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+	private final int initialCapacity;
+	private ByteBuffer bytes;
+
+	public TextEncoder(Charset charset) {
+		this.charset = charset;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.initialCapacity = (int) Math.ceil(CHUNK * encoder.maxBytesPerChar());
+		this.bytes = ByteBuffer.allocate(initialCapacity);
+	}
+
+	/**
+	 * @return the calling thread's encoder for {@code charset}
+	 */
+	public static TextEncoder get(Charset charset) {
+		TextEncoder encoder = CURRENT.get();
+		if (encoder == null || !encoder.charset.equals(charset)) {
+			encoder = new TextEncoder(charset);
+			CURRENT.set(encoder);
+		}
+		return encoder;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public ByteBuffer encode(CharSequence s) {
+		return encode(s, 0, s.length());
+	}
+
+	/**
+	 * Encodes {@code s[start, end)}. The returned buffer is flipped, backed by an
+	 * array starting at offset 0 and only valid until the next call.
+	 */
+	public ByteBuffer encode(CharSequence s, int start, int end) {
+		if (bytes.capacity() > MAX_RETAINED_CAPACITY)
+			bytes = ByteBuffer.allocate(initialCapacity);
+		encoder.reset();
+		bytes.clear();
+		charBuffer.clear();
+		int pos = start;
+		boolean endOfInput;
+		do {
+			int n = Math.min(charBuffer.remaining(), end - pos);
+			getChars(s, pos, pos + n, charBuffer.position());
+			charBuffer.position(charBuffer.position() + n);
+			pos += n;
+			endOfInput = pos == end;
+			charBuffer.flip();
+			while (encoder.encode(charBuffer, bytes, endOfInput).isOverflow())
+				grow();
+			charBuffer.compact();
+		} while (!endOfInput);
+		while (encoder.flush(bytes).isOverflow())
+			grow();
+		bytes.flip();
+		return bytes;
+	}
+
+	private void getChars(CharSequence s, int from, int to, int dst) {
+		if (s instanceof String) {
+			((String) s).getChars(from, to, chars, dst);
+		} else if (s instanceof StringBuilder) {
+			((StringBuilder) s).getChars(from, to, chars, dst);
+		} else {
+			for (int i = from; i < to; i++)
+				chars[dst++] = s.charAt(i);
+		}
+	}
+
+	private void grow() {
+		ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+		bytes.flip();
+		larger.put(bytes);
+		bytes = larger;
+	}
+}